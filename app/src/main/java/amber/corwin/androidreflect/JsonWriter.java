@@ -0,0 +1,223 @@
+package amber.corwin.androidreflect;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+
+import amber.corwin.androidreflect.reflect.ValueRender;
+
+/**
+ * Writes JSON to a stream as it goes; only keeps track of where commas are due,
+ * so nothing is assembled in memory.
+ */
+public class JsonWriter implements Flushable {
+
+    private static final int MAX_DEPTH = 64;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private final int maxElements = ValueRender.DEFAULT_MAX_ELEMENTS;
+    private final int maxArrayDepth = ValueRender.DEFAULT_MAX_DEPTH;
+    /**
+     * Whether the object or array at each level is still empty.
+     */
+    private final boolean[] empty = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) return nullValue();
+        separate();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return value(Double.toString(value));
+        separate();
+        out.write(Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        separate();
+        out.write("null");
+        return this;
+    }
+
+    /**
+     * Writes numbers, booleans and strings as such, arrays element by element,
+     * and any other object as its toString().
+     * <p/>
+     * Arrays are bounded as in {@link ValueRender}, and what is left out is counted in a last
+     * "&#8230; N more" element. An object whose toString() throws is written as
+     * <code>{"error": type}</code>, since the response may well be on its way already.
+     */
+    public JsonWriter value(Object value) throws IOException {
+        return value(value, 0);
+    }
+
+    private JsonWriter value(Object value, int arrayDepth) throws IOException {
+        if (value == null) return nullValue();
+        if (value instanceof Boolean) return value(((Boolean) value).booleanValue());
+        if (value instanceof Double || value instanceof Float) return value(((Number) value).doubleValue());
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return value(((Number) value).longValue());
+        if (value.getClass().isArray()) return array(value, arrayDepth);
+        String s;
+        try {
+            s = value.toString();
+        }
+        catch (Exception e) {
+            return beginObject().name("error").value(e.getClass().getName()).endObject();
+        }
+        return value(s);
+    }
+
+    /**
+     * Primitive arrays are read through their own type, without boxing each element.
+     */
+    private JsonWriter array(Object arr, int arrayDepth) throws IOException {
+        int length = Array.getLength(arr);
+        beginArray();
+        int i = 0;
+        int n = Math.min(length, maxElements);
+        if (arrayDepth >= maxArrayDepth || depth >= MAX_DEPTH) {
+            // too deep to show any elements; only say how many there are
+        }
+        else if (arr instanceof Object[]) {
+            Object[] a = (Object[]) arr;
+            for (; i < n; i++) value(a[i], arrayDepth + 1);
+        }
+        else if (arr instanceof int[]) {
+            int[] a = (int[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof byte[]) {
+            byte[] a = (byte[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof long[]) {
+            long[] a = (long[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof double[]) {
+            double[] a = (double[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof float[]) {
+            float[] a = (float[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof short[]) {
+            short[] a = (short[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof boolean[]) {
+            boolean[] a = (boolean[]) arr;
+            for (; i < n; i++) value(a[i]);
+        }
+        else if (arr instanceof char[]) {
+            char[] a = (char[]) arr;
+            for (; i < n; i++) value(String.valueOf(a[i]));
+        }
+        if (i < length) value("\u2026 " + (length - i) + " more");
+        return endArray();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        if (depth == MAX_DEPTH) throw new IllegalStateException("nested too deeply");
+        separate();
+        out.write(c);
+        empty[depth++] = true;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        depth--;
+        out.write(c);
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+        }
+        else if (depth > 0) {
+            if (empty[depth - 1]) empty[depth - 1] = false;
+            else out.write(',');
+        }
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+        int from = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') continue;
+            out.write(s, from, i - from);
+            from = i + 1;
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX[c >> 12 & 0xf]);
+                    out.write(HEX[c >> 8 & 0xf]);
+                    out.write(HEX[c >> 4 & 0xf]);
+                    out.write(HEX[c & 0xf]);
+            }
+        }
+        out.write(s, from, s.length() - from);
+        out.write('"');
+    }
+}
@@ -2,6 +2,8 @@ package amber.corwin.androidreflect;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -19,8 +21,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Semaphore;
 
 import amber.corwin.androidreflect.reflect.ObjectStore;
 import nanohttpd.NanoHTTPD;
@@ -48,6 +48,22 @@ public class MainActivity extends Activity {
             }
         };
 
+        // Raw resources are stored uncompressed (see aaptOptions), so they can be
+        // sent straight from the APK
+        server.registerStaticFiles(new ReflectServer.StaticFileProvider() {
+            @Override
+            public NanoHTTPD.FileResponse open(String path, String mimeType) throws IOException {
+                if (!path.equals("/js/reflect.js")) return null;
+                AssetFileDescriptor fd;
+                try {
+                    fd = getResources().openRawResourceFd(R.raw.reflect);
+                }
+                catch (Resources.NotFoundException e) { return null; }  // compressed after all
+                return new NanoHTTPD.FileResponse(mimeType, fd.createInputStream(),
+                        fd.getStartOffset(), fd.getLength());
+            }
+        });
+
         // Since application files are unavailable, register a resource provider
         server.registerStaticResources(new ReflectServer.StaticResourceProvider() {
             @Override
@@ -57,35 +73,7 @@ public class MainActivity extends Activity {
             }
         });
 
-        server.setWorker(new ReflectServer.Worker() {
-
-            @Override
-            public <V> V delegate(Callable<V> code) throws Exception {
-                final Semaphore s = new Semaphore(0);
-
-                final Box<V> box = new Box<>();
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            box.ret = code.call();
-                        }
-                        catch (Exception e) { box.err = e; }
-                        finally { s.release(); }
-                    }
-                });
-
-                while (true) {
-                    try {
-                        s.acquire();
-                    }
-                    catch (InterruptedException e) { continue; }
-                    if (box.err != null) throw box.err;
-                    else return box.ret;
-                }
-            }
-        });
+        server.setWorker(new UiThreadWorker());
 
         // Make Activity instance available
         ObjectStore store = server.getObjectStore();
@@ -97,11 +85,6 @@ public class MainActivity extends Activity {
         server.start();
     }
 
-    static class Box<V> {
-        Exception err = null;
-        V ret = null;
-    }
-
     public void loadMethods() {
         Method[] methods = Toast.class.getMethods();
         List<String> entries = new ArrayList<>();
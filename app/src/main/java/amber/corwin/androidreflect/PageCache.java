@@ -0,0 +1,125 @@
+package amber.corwin.androidreflect;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import nanohttpd.NanoHTTPD;
+
+/**
+ * Rendered pages, kept by key up to a total size; the least recently used go first.
+ * <p/>
+ * Each page has an ETag computed from its bytes, so that a client that already has it
+ * can be answered with 304 Not Modified. The ETag is weak, since the same one goes with
+ * the identity body and with the gzip or deflate body that the server may send instead.
+ * Requests for a page that is being rendered wait for that rendering instead of starting another.
+ */
+class PageCache {
+
+    static class Page {
+        final byte[] body;
+        final String etag;
+
+        Page(byte[] body) {
+            this.body = body;
+            this.etag = etag(body);
+        }
+
+        /**
+         * @param ifNoneMatch value of an If-None-Match header, may be null.
+         */
+        boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) return false;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);  // If-None-Match compares weakly
+                if (tag.equals("*") || tag.equals(etag.substring(2))) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Entry {
+        final WorkerTask<Page> task;
+        /**
+         * Size of the page once rendered; 0 while rendering.
+         */
+        int size;
+
+        Entry(WorkerTask<Page> task) { this.task = task; }
+    }
+
+    private static final int INITIAL_PAGE_SIZE = 16 * 1024;
+
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<String, Entry> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+    PageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the page cached under <code>key</code>, rendering it first if it is not there.
+     */
+    Page get(String key, NanoHTTPD.Response.BodyWriter render) throws Exception {
+        Entry entry;
+        boolean miss = false;
+        synchronized (this) {
+            entry = pages.get(key);
+            if (entry == null) {
+                entry = new Entry(new WorkerTask<>(() -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_PAGE_SIZE);
+                    render.writeTo(out);
+                    return new Page(out.toByteArray());
+                }));
+                pages.put(key, entry);
+                miss = true;
+            }
+        }
+        if (miss) {
+            entry.task.run();
+            settle(key, entry);
+        }
+        return entry.task.result();
+    }
+
+    /**
+     * Accounts for a page that has just been rendered, and evicts what no longer fits.
+     */
+    private synchronized void settle(String key, Entry entry) {
+        Page page;
+        try {
+            page = entry.task.result();
+        }
+        catch (Exception e) {
+            pages.remove(key);  // not cached; the next request renders again
+            return;
+        }
+        entry.size = Math.max(1, page.body.length);
+        bytes += entry.size;
+        for (Iterator<Entry> it = pages.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            Entry e = it.next();
+            if (e.size == 0) continue;
+            it.remove();
+            bytes -= e.size;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String etag(byte[] body) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(body);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder("W/\"");
+        for (int i = 0; i < 10; i++) sb.append(HEX[digest[i] >> 4 & 0xf]).append(HEX[digest[i] & 0xf]);
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,81 @@
+package amber.corwin.androidreflect;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a page to a stream as UTF-8, through a buffer of its own; text is encoded
+ * straight into the buffer, without an intermediate byte array per string.
+ */
+class PageWriter implements Flushable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int count;
+
+    PageWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes bytes that are already encoded, such as template fragments.
+     */
+    PageWriter write(byte[] bytes) throws IOException {
+        if (bytes.length > buf.length - count) {
+            drain();
+            if (bytes.length > buf.length) {
+                out.write(bytes);
+                return this;
+            }
+        }
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+        return this;
+    }
+
+    PageWriter write(String text) throws IOException {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            if (buf.length - count < 4) drain();
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | c >> 6);
+                buf[count++] = (byte) (0x80 | c & 0x3f);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buf[count++] = (byte) (0xf0 | cp >> 18);
+                buf[count++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buf[count++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buf[count++] = (byte) (0x80 | cp & 0x3f);
+            }
+            else if (Character.isSurrogate(c)) {
+                buf[count++] = '?';  // unpaired, as String.getBytes() does
+            }
+            else {
+                buf[count++] = (byte) (0xe0 | c >> 12);
+                buf[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+}
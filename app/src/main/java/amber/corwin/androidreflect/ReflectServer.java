@@ -1,27 +1,40 @@
 package amber.corwin.androidreflect;
 
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import amber.corwin.androidreflect.reflect.ClassInfo;
+import amber.corwin.androidreflect.reflect.Expression;
+import amber.corwin.androidreflect.reflect.Invoker;
 import amber.corwin.androidreflect.reflect.MethodCall;
 import amber.corwin.androidreflect.reflect.ObjectStore;
 import amber.corwin.androidreflect.reflect.ObjectStore.NoSuchObjectException;
 import amber.corwin.androidreflect.reflect.ValueParser;
 import amber.corwin.androidreflect.reflect.ValueParser.ValueFormatError;
 import amber.corwin.androidreflect.reflect.ValueRender;
+import nanohttpd.Compression;
 import nanohttpd.NanoHTTPD;
 
-import static amber.corwin.androidreflect.reflect.MethodCall_jdk_lt_8.methodSimpleSignature;
 import static nanohttpd.NanoHTTPD.MIME_HTML;
 import static nanohttpd.NanoHTTPD.MIME_PLAINTEXT;
 
@@ -38,6 +51,23 @@ public class ReflectServer {
 
     public ReflectServer(Class<?> rootClass) {
         this.root = rootClass;
+        router = new Router()
+                .exact("/", (path, q, session) -> {
+                    //return membersPage(root, q);
+                    NanoHTTPD.Response r = new NanoHTTPD.Response(NanoHTTPD.Response.Status.REDIRECT, MIME_PLAINTEXT, "");
+                    r.addHeader("Location", "/" + root.getName());
+                    return r;
+                })
+                .exact("/batch", (path, q, session) -> batchPage(session))
+                .exact("/eval", (path, q, session) -> evalPage(q))
+                .verb("watch", (path, q, session) -> watchPage(path, q))
+                .verb("call", (path, q, session) -> methodCallPage(path, q.substring(4)))
+                .verb("get", (path, q, session) -> fieldGetPage(path, q.substring(3)))
+                .verb("persist", "/[", (path, q, session) -> persistAndRedirect(path))
+                .prefix("/$", (path, q, session) -> lookupAndRedirect(path))
+                .prefix("/js/", (path, q, session) -> staticResource(path, session.getHeaders()))
+                .singleSegment((path, q, session) -> membersPage(path, q, session))
+                .mount("api", apiRoutes());
     }
 
     // ----------------
@@ -46,34 +76,25 @@ public class ReflectServer {
 
     private static final String BASE_TEMPLATE = "<html><body>%s</body></html>";
 
+    private final Router router;
+
+    /**
+     * Routes can be added here to serve more endpoints, and the routes' timings read.
+     */
+    public Router getRouter() {
+        return router;
+    }
+
     public void start() {
         httpd = new NanoHTTPD(8014) {
             @Override
             public Response serve(IHTTPSession session) {
-                String path = session.getUri();
-                String q = session.getQueryParameterString();
-                if (path.equals("/")) {
-                	//return membersPage(root, q);
-                    NanoHTTPD.Response r = new NanoHTTPD.Response(NanoHTTPD.Response.Status.REDIRECT, MIME_PLAINTEXT, "");
-                    r.addHeader("Location", "/" + root.getName());
-                    return r;
-                }
-                else if (q != null && q.startsWith("call"))
-                    return methodCallPage(path, q.substring(4));
-                else if (q != null && q.startsWith("get"))
-                    return fieldGetPage(path, q.substring(3));
-                else if (path.startsWith("/[") && q != null && q.startsWith("persist"))
-                    return persistAndRedirect(path);
-                else if (path.startsWith("/$"))
-                    return lookupAndRedirect(path);
-                else if (path.matches("/[^/]*/?"))
-                    return membersPage(path, q);
-                else if (path.startsWith("/js/"))
-                	return staticResource(path);
-                else
-                    return super.serve(session);
+                Response r = router.serve(session.getUri(), session.getQueryParameterString(), session);
+                return r != null ? r : super.serve(session);
             }
         };
+        // Connections waiting on the worker give their thread back only with the selector engine
+        httpd.setEngine(NanoHTTPD.Engine.SELECTOR);
 
         try {
             httpd.start();
@@ -101,74 +122,88 @@ public class ReflectServer {
     // Pages Part
     // ----------
     
-    String HEAD = "<script src=\"/js/reflect.js\"></script>";
+    static final String HEAD = "<script src=\"/js/reflect.js\"></script>";
     
-    private NanoHTTPD.Response membersPage(String path, String thisRef) {
+    /**
+     * Member pages only depend on the class and the this-ref, so they are rendered once
+     * and then served from here.
+     */
+    private final PageCache memberPages = new PageCache(MEMBER_PAGES_MAX_BYTES);
+
+    private static final long MEMBER_PAGES_MAX_BYTES = 4 << 20;
+    /**
+     * Pages of classes with more members than this are streamed to the client as they are
+     * rendered, instead of being held whole in the cache.
+     */
+    private static final int MEMBER_PAGES_MAX_CACHED_MEMBERS = 4096;
+
+    private NanoHTTPD.Response membersPage(String path, String thisRef, NanoHTTPD.IHTTPSession session) {
     	path = removeLeading(path, "/");
     	path = removeTrailing(path, "/");
     	try {
-    		return membersPage(ValueParser.typeForName(path), thisRef);
+    		ClassInfo info = ClassInfo.of(ValueParser.typeForName(path));
+    		NanoHTTPD.Response.BodyWriter page = out -> writeMembersPage(new PageWriter(out), info, thisRef);
+    		if (info.methods.length + info.fields.length > MEMBER_PAGES_MAX_CACHED_MEMBERS)
+    			return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML, page);
+    		String key = info.type.getName() + "?" + (thisRef == null ? "" : thisRef);
+    		return cachedPage(memberPages.get(key, page), session);
     	}
     	catch (ClassNotFoundException e) {
     		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
     				e.toString());
     	}
-    }
-    
-    private NanoHTTPD.Response membersPage(Class<?> root, String thisRef) {
-        String header = String.format("<input class=\"this-ref\" value=\"%s\"/>", thisRef == null ? "" : thisRef) +
-                (thisRef == null ? "" : String.format("<a href=\"/%s?persist\">persist</a>", thisRef));
-        StringBuilder payload = new StringBuilder();
-        for (Method m : root.getMethods()) {
-            String links = 
-                    String.format("<a href=\"%s\" data-href=\"%s\">call</a>", methodCallUrl(m, thisRef), methodCallUrl(m)) +
-                    (Modifier.isStatic(m.getModifiers()) ? "" : String.format("<input class=\"this-arg\" value=\"%s\"/>", (thisRef == null ? "" : thisRef))) +
-            		repeatString("<input /> ", m.getParameterTypes().length);
-            payload.append(String.format("<li>%s %s</li>\n",
-                    methodSimpleSignature(m), links));
-        }
-        for (Field f : root.getFields()) {
-            String links = (Modifier.isStatic(f.getModifiers())) ?
-                    String.format("<a href=\"%s\">get</a>", fieldGetUrl(f)) : "";
-            payload.append(String.format("<li>%s %s</li>\n",
-                    fieldSimpleSignature(f), links));
-        }
-        return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
-                String.format(BASE_TEMPLATE, String.format("%s\n%s\n<ul>%s</ul>\n", HEAD, header, payload.toString())));
+    	catch (Exception e) {
+    		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+    				e.toString());
+    	}
     }
 
-    private String repeatString(String s, int times) {
-        StringBuilder b = new StringBuilder();
-        for (int i = 0; i < times; i++) b.append(s);
-        return b.toString();
+    /**
+     * Answers with 304 Not Modified if the client already has the page.
+     * Clients are asked to revalidate every time, which costs them a round trip but no body.
+     */
+    private static NanoHTTPD.Response cachedPage(PageCache.Page page, NanoHTTPD.IHTTPSession session) {
+        NanoHTTPD.Response response = page.matches(session.getHeaders().get("if-none-match")) ?
+                new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_MODIFIED, MIME_HTML, "") :
+                new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML, new ByteArrayInputStream(page.body));
+        response.addHeader("ETag", page.etag);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
     }
 
-    private String methodCallUrl(Method m) {
-        return methodCallUrl(m, null);
-    }
-    
-    private String methodCallUrl(Method m, String thisRef) {
-		// "/{class}/{name}?call&{param1-type}&{param2-type}&..."
-		StringBuilder b = new StringBuilder();
-		b.append("/");
-		b.append(m.getDeclaringClass().getName());
-		b.append("/");
-		b.append(m.getName());
-		b.append("?call");
-		if (!Modifier.isStatic(m.getModifiers())) {
-		    b.append("&this");
-		    if (thisRef != null) b.append("=" + thisRef);
-		}
-		for (Class<?> c : m.getParameterTypes())
-			b.append("&" + c.getName());
-		return b.toString();
-    }
-    
-    private String fieldGetUrl(Field f) {
-    	// "/{class}/{name}?get"
-    	return "/" + f.getDeclaringClass().getName() + "/" + f.getName() + "?get";
+    private static final Template MEMBERS_PAGE = Template.compile(
+            "<html><body>" + HEAD + "\n<input class=\"this-ref\" value=\"{}\"/>{}\n<ul>{}</ul>\n</body></html>");
+    private static final Template PERSIST_LINK = Template.compile("<a href=\"/{}?persist\">persist</a>");
+    private static final Template METHOD_ROW = Template.compile(
+            "<li>{} <a href=\"{}\" data-href=\"{}\">call</a>{}{}</li>\n");
+    private static final Template THIS_ARG = Template.compile("<input class=\"this-arg\" value=\"{}\"/>");
+    private static final byte[] ARG_INPUT = "<input /> ".getBytes(StandardCharsets.UTF_8);
+    private static final Template FIELD_ROW = Template.compile("<li>{} {}</li>\n");
+    private static final Template GET_LINK = Template.compile("<a href=\"{}\">get</a>");
+
+    /**
+     * Writes the rows one by one as they are formatted, so nothing page-sized is built.
+     */
+    static void writeMembersPage(PageWriter out, ClassInfo info, String thisRef) throws IOException {
+        String ref = thisRef == null ? "" : thisRef;
+        Template.Part persist = thisRef == null ? null : o -> PERSIST_LINK.render(o, thisRef);
+        Template.Part thisArg = o -> THIS_ARG.render(o, ref);
+        MEMBERS_PAGE.render(out, ref, persist, (Template.Part) o -> {
+            for (ClassInfo.MethodInfo m : info.methods) {
+                Template.Part args = o2 -> {
+                    for (int i = 0; i < m.parameterTypes.length; i++) o2.write(ARG_INPUT);
+                };
+                METHOD_ROW.render(o, m.simpleSignature, m.callUrl(thisRef), m.callUrl,
+                        m.isStatic ? null : thisArg, args);
+            }
+            for (ClassInfo.FieldInfo f : info.fields) {
+                FIELD_ROW.render(o, f.simpleSignature,
+                        f.isStatic ? (Template.Part) o2 -> GET_LINK.render(o2, f.getUrl) : null);
+            }
+        });
+        out.flush();
     }
-    
+
     private String objectRefUrl(UUID ref, String className) {
         // "/{class}?[{uuid}]
         return "/" + className + "?[" + ref + "]";
@@ -179,11 +214,6 @@ public class ReflectServer {
         return "/" + className + "?" + persistentName;
     }
     
-    private String fieldSimpleSignature(Field f) {
-        // TODO toGenericString if JDK supports
-    	return f.getType().toString() + " " + f.getName();
-    }
-    
     private String objectRefLink(UUID ref, String className) {
         return String.format("<a href=\"%s\">[%s]</a>", objectRefUrl(ref, className), ref);
     }
@@ -203,25 +233,15 @@ public class ReflectServer {
 	        Class<?> root = q.class_();
 	        
 	        try {
-	            Method method = root.getMethod(q.name, q.parameterClasses());
-	            Object ret = null;
-	            Object err = null;
-	            UUID uuid = null;
-	            
-	            try {
-	                ret = worker.delegate(() ->
-                            method.invoke(q.thisArgActual(parser), q.argumentActualValues(parser)));
-	            	if (ret != null)
-	            	    uuid = store.add(ret);
-	            }
-	            catch (InvocationTargetException e) { err = e.getCause(); }
-	            catch (Exception e) { err = e; }
-
-	            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
-	                    String.format(BASE_TEMPLATE,  
-	                    		String.format("<p>%s</p>", method.toGenericString() +
-	                    			                       (err == null ? " = " + formatHtml(ret) : " !! " + formatHtml(err))) +
-	                    		String.format("<p>%s</p>", uuid == null ? "" : objectRefLink(uuid, ret.getClass()))));
+	            Invoker invoker = ClassInfo.of(root).getMethod(q).invoker();
+	            // Finish the page once the worker has made the call, without holding the thread meanwhile
+	            return deferred(worker.submit(() ->
+	                    invoker.invoke(q.thisArgActual(parser), q.argumentActualValues(parser))),
+	                    (ret, err, uuid) -> new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
+	                        String.format(BASE_TEMPLATE,
+	                                String.format("<p>%s</p>", invoker.method.toGenericString() +
+	                                                           (err == null ? " = " + formatHtml(ret) : " !! " + formatHtml(err))) +
+	                                String.format("<p>%s</p>", uuid == null ? "" : objectRefLink(uuid, ret.getClass())))));
 	        }
 	        catch (NoSuchMethodException e) {
 	            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
@@ -249,25 +269,16 @@ public class ReflectServer {
     	
     	try {
     	    Class<?> root = ValueParser.typeForName(split[0]);
-    		Field field = root.getField(split[1]);
+    		Field field = ClassInfo.of(root).getField(split[1]).field;
     		Object obj = queryString != null && queryString.length() != 0 ?
     		        parser.parseReference(queryString, split[0]) : null;
-    		
-            Object ret = null;
-            Object err = null;
-            UUID uuid = null;
 
-    		try {
-    			ret = field.get(obj);
-    			if (ret != null)
-    			    uuid = store.add(ret);
-    		}
-    		catch (Exception e) { err = e; }
-    		
-            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
-                    String.format(BASE_TEMPLATE, 
-                            String.format("<p>%s</p>", field.toGenericString() + (err == null ? " = " + ret : " !! " + err))) + 
-                            String.format("<p>%s</p>", uuid == null ? "" : objectRefLink(uuid, ret.getClass())));
+    		return deferred(worker.submit(() -> field.get(obj)),
+    		        (ret, err, uuid) -> new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
+                        String.format(BASE_TEMPLATE,
+                                String.format("<p>%s</p>", field.toGenericString() +
+                                                           (err == null ? " = " + formatHtml(ret) : " !! " + formatHtml(err))) +
+                                String.format("<p>%s</p>", uuid == null ? "" : objectRefLink(uuid, ret.getClass())))));
     	}
         catch (ValueFormatError e) {
             return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
@@ -283,6 +294,629 @@ public class ReflectServer {
     	}
     }
     
+    /**
+     * Makes the response to a call, once it is done; <code>uuid</code> refers to <code>ret</code>
+     * in the store, and is null when <code>ret</code> is null or the call failed with <code>err</code>.
+     */
+    interface ResultRender {
+        NanoHTTPD.Response render(Object ret, Throwable err, UUID uuid);
+    }
+
+    /**
+     * Answers once the worker is done with <code>task</code>, without holding the connection's
+     * thread meanwhile. The worker only hands over the outcome: the result is stored and
+     * rendered on the thread that sends the response.
+     */
+    private NanoHTTPD.Response deferred(WorkerTask<Object> task, ResultRender render) {
+        NanoHTTPD.DeferredResponse response = new NanoHTTPD.DeferredResponse();
+        response.setCancelHandler(() -> task.cancel(false));
+        task.whenDone(() -> response.complete(() -> {
+            Object ret = null;
+            Throwable err = null;
+            UUID uuid = null;
+
+            try {
+                ret = task.result();
+                if (ret != null)
+                    uuid = store.add(ret);
+            }
+            catch (InvocationTargetException e) { err = e.getCause(); }
+            catch (Exception e) { err = e; }
+
+            return render.render(ret, err, uuid);
+        }));
+        return response;
+    }
+
+    // ---------------
+    // Expression Part
+    // ---------------
+
+    /**
+     * Evaluates a chain such as <code>$0.getWindow().getDecorView().getChildCount()</code>,
+     * given as the (URL-encoded) query string, in a single hop to the worker.
+     * Only the final result is added to the store.
+     */
+    private NanoHTTPD.Response evalPage(String queryString) {
+        String text = decodeQuery(queryString);
+
+        Expression expr;
+        try {
+            expr = Expression.compile(text);
+        }
+        catch (ValueFormatError e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Invalid expression: " + e.getMessage());
+        }
+        catch (ClassNotFoundException e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                    "Unknown class: " + e.getMessage());
+        }
+
+        return deferred(worker.submit(() -> expr.evaluate(parser)),
+                (ret, err, uuid) -> new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
+                    String.format(BASE_TEMPLATE,
+                            String.format("<p>%s</p>", formatHtml(expr.text) +
+                                                       (err == null ? " = " + formatHtml(ret) : " !! " + formatHtml(err))) +
+                            String.format("<p>%s</p>", uuid == null ? "" : objectRefLink(uuid, ret.getClass())))));
+    }
+
+    // --------
+    // API Part
+    // --------
+
+    private static final String MIME_JSON = "application/json";
+
+    /**
+     * The same operations as the pages, under "/api/", answered in JSON:
+     *   /api/{class}[?{ref}]           members, with call and get URLs
+     *   /api/{class}/{name}?call&...   result of a call
+     *   /api/{class}/{name}?get[{ref}] value of a field
+     *   /api/eval?{expression}         value of an expression
+     *   /api/{ref}                     an object in the store
+     * Results carry the value, its class and, unless null, a reference to it in the store.
+     */
+    private Router apiRoutes() {
+        return new Router()
+                .exact("/eval", (path, q, session) -> apiEval(q))
+                .verb("call", (path, q, session) -> apiCall(path, q.substring(4)))
+                .verb("get", (path, q, session) -> apiGet(path, q.substring(3)))
+                .prefix("/$", (path, q, session) -> apiHandle(path))
+                .prefix("/[", (path, q, session) -> apiHandle(path))
+                .singleSegment((path, q, session) -> apiMembers(path, q));
+    }
+
+    interface JsonBody {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    /**
+     * A response whose JSON is written out as it is sent.
+     */
+    private static NanoHTTPD.Response json(NanoHTTPD.Response.IStatus status, JsonBody body) {
+        return new NanoHTTPD.Response(status, MIME_JSON, out -> {
+            Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            body.write(new JsonWriter(w));
+            w.flush();
+        });
+    }
+
+    private static NanoHTTPD.Response jsonError(NanoHTTPD.Response.IStatus status, String message) {
+        return json(status, json -> json.beginObject().name("error").value(message).endObject());
+    }
+
+    private NanoHTTPD.Response apiMembers(String path, String thisRef) {
+        path = removeTrailing(removeLeading(path, "/"), "/");
+        ClassInfo info;
+        try {
+            info = ClassInfo.of(ValueParser.typeForName(path));
+        }
+        catch (ClassNotFoundException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Unknown class: " + path);
+        }
+        String ref = thisRef == null || thisRef.length() == 0 ? null : thisRef;
+
+        return json(NanoHTTPD.Response.Status.OK, json -> {
+            json.beginObject()
+                    .name("class").value(info.type.getName())
+                    .name("this").value(ref);
+            json.name("methods").beginArray();
+            for (ClassInfo.MethodInfo m : info.methods) {
+                json.beginObject()
+                        .name("name").value(m.method.getName())
+                        .name("signature").value(m.simpleSignature)
+                        .name("static").value(m.isStatic)
+                        .name("returnType").value(m.method.getReturnType().getName());
+                json.name("parameterTypes").beginArray();
+                for (Class<?> p : m.parameterTypes) json.value(p.getName());
+                json.endArray();
+                json.name("call").value("/api" + m.callUrl(ref))
+                        .endObject();
+            }
+            json.endArray();
+            json.name("fields").beginArray();
+            for (ClassInfo.FieldInfo f : info.fields) {
+                json.beginObject()
+                        .name("name").value(f.field.getName())
+                        .name("signature").value(f.simpleSignature)
+                        .name("static").value(f.isStatic)
+                        .name("type").value(f.field.getType().getName())
+                        .name("get").value("/api" + f.getUrl + (f.isStatic || ref == null ? "" : ref))
+                        .endObject();
+            }
+            json.endArray();
+            json.endObject();
+        });
+    }
+
+    private NanoHTTPD.Response apiCall(String path, String queryString) {
+        path = removeLeading(path, "/");
+        queryString = removeLeading(queryString, "&");
+        try {
+            MethodCall q = MethodCall.fromStrings(path, queryString);
+            Invoker invoker = Invoker.of(q);
+            return apiResult(invoker.method.toGenericString(), worker.submit(() ->
+                    invoker.invoke(q.thisArgActual(parser), q.argumentActualValues(parser))));
+        }
+        catch (ValueFormatError e) {
+            return jsonError(NanoHTTPD.Response.Status.BAD_REQUEST, "Invalid method specification: " + path + "?" + queryString);
+        }
+        catch (NoSuchMethodException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Method not found: " + path);
+        }
+        catch (ClassNotFoundException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Unknown class: " + e.getMessage());
+        }
+    }
+
+    private NanoHTTPD.Response apiGet(String path, String queryString) {
+        path = removeLeading(path, "/");
+        String[] split = path.split("/", 2);
+        try {
+            if (split.length < 2) throw new ValueFormatError();
+            Field field = ClassInfo.of(ValueParser.typeForName(split[0])).getField(split[1]).field;
+            Object obj = queryString != null && queryString.length() != 0 ?
+                    parser.parseReference(queryString, split[0]) : null;
+            return apiResult(field.toGenericString(), worker.submit(() -> field.get(obj)));
+        }
+        catch (ValueFormatError e) {
+            return jsonError(NanoHTTPD.Response.Status.BAD_REQUEST, "Invalid object reference: " + queryString);
+        }
+        catch (ClassNotFoundException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Unknown class: " + e.getMessage());
+        }
+        catch (NoSuchFieldException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Field not found: " + path);
+        }
+    }
+
+    private NanoHTTPD.Response apiEval(String queryString) {
+        String text = decodeQuery(queryString);
+        try {
+            Expression expr = Expression.compile(text);
+            return apiResult(expr.text, worker.submit(() -> expr.evaluate(parser)));
+        }
+        catch (ValueFormatError e) {
+            return jsonError(NanoHTTPD.Response.Status.BAD_REQUEST, "Invalid expression: " + e.getMessage());
+        }
+        catch (ClassNotFoundException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Unknown class: " + e.getMessage());
+        }
+    }
+
+    private NanoHTTPD.Response apiHandle(String path) {
+        String ref = removeLeading(path, "/");
+        Object obj;
+        try {
+            obj = parser.parseReference(ref, "java.lang.Object");
+        }
+        catch (ValueFormatError e) {
+            return jsonError(NanoHTTPD.Response.Status.BAD_REQUEST, "Invalid object reference: " + ref);
+        }
+        catch (NoSuchElementException e) {
+            return jsonError(NanoHTTPD.Response.Status.NOT_FOUND, "Object not found: " + ref);
+        }
+        return json(NanoHTTPD.Response.Status.OK, json -> json.beginObject()
+                .name("ref").value(ref)
+                .name("type").value(obj.getClass().getName())
+                .name("value").value(obj)
+                .name("members").value("/api/" + obj.getClass().getName() + "?" + ref)
+                .endObject());
+    }
+
+    /**
+     * Answers once the worker is done with <code>task</code>, as for the pages.
+     */
+    private NanoHTTPD.Response apiResult(String member, WorkerTask<Object> task) {
+        return deferred(task, (ret, err, uuid) -> json(NanoHTTPD.Response.Status.OK, json -> {
+            json.beginObject().name("member").value(member);
+            if (err != null) {
+                json.name("error").beginObject()
+                        .name("type").value(err.getClass().getName())
+                        .name("message").value(err.getMessage())
+                        .endObject();
+            }
+            else {
+                json.name("value").value(ret)
+                        .name("type").value(ret == null ? null : ret.getClass().getName())
+                        .name("ref").value(uuid == null ? null : "[" + uuid + "]");
+            }
+            json.endObject();
+        }));
+    }
+
+    // ----------
+    // Watch Part
+    // ----------
+
+    private static final String MIME_EVENT_STREAM = "text/event-stream";
+    private static final long MIN_WATCH_INTERVAL = 50;
+    /**
+     * A comment is sent when nothing has changed for this long, so that closed connections are noticed.
+     */
+    private static final long WATCH_HEARTBEAT = 5000;
+
+    private long watchInterval = 500;
+    private int maxWatchers = 4;
+    private final AtomicInteger watchers = new AtomicInteger();
+
+    /**
+     * Sets how often (in milliseconds) watched values are sampled, unless the request says otherwise.
+     */
+    public void setWatchInterval(long watchInterval) {
+        this.watchInterval = Math.max(MIN_WATCH_INTERVAL, watchInterval);
+    }
+
+    /**
+     * Sets how many watches may be open at once; each one holds a request thread.
+     */
+    public void setMaxWatchers(int maxWatchers) {
+        this.maxWatchers = maxWatchers;
+    }
+
+    /**
+     * Streams the value of a getter or a field as Server-Sent Events, sending it again only when it changes.
+     */
+    private NanoHTTPD.Response watchPage(String path, String queryString) {
+        // "/{class}/{name}?watch[={interval}]&call&..." or "/{class}/{name}?watch[={interval}]&get[{ref}]"
+        path = removeLeading(path, "/");
+        String[] split = queryString.split("&", 2);
+        String spec = split.length > 1 ? split[1] : "";
+
+        long interval = watchInterval;
+        try {
+            if (split[0].startsWith("watch="))
+                interval = Math.max(MIN_WATCH_INTERVAL, Long.parseLong(split[0].substring(6)));
+        }
+        catch (NumberFormatException e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Invalid interval: " + split[0]);
+        }
+
+        Callable<Object> sample;
+        try {
+            if (spec.startsWith("call")) {
+                MethodCall q = MethodCall.fromStrings(path, removeLeading(spec.substring(4), "&"));
+                final Invoker invoker = Invoker.of(q);
+                final Object thisArg = q.thisArgActual(parser);
+                final Object[] args = q.argumentActualValues(parser);
+                sample = () -> invoker.invoke(thisArg, args);
+            }
+            else if (spec.startsWith("get")) {
+                String[] member = path.split("/", 2);
+                if (member.length < 2) throw new ValueFormatError();
+                final Field field = ClassInfo.of(ValueParser.typeForName(member[0])).getField(member[1]).field;
+                String ref = spec.substring(3);
+                final Object obj = ref.length() != 0 ? parser.parseReference(ref, member[0]) : null;
+                sample = () -> field.get(obj);
+            }
+            else
+                return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                        "Watch needs a call or get specification: " + queryString);
+        }
+        catch (ValueFormatError e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Invalid watch specification: " + path + "?" + queryString);
+        }
+        catch (ClassNotFoundException e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                    "Unknown class: " + e.toString());
+        }
+        catch (NoSuchMethodException | NoSuchFieldException e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                    "Member not found: " + path);
+        }
+        catch (NoSuchElementException e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                    "Object not found: " + e.getMessage());
+        }
+
+        if (watchers.incrementAndGet() > maxWatchers) {
+            watchers.decrementAndGet();
+            NanoHTTPD.Response r = new NanoHTTPD.Response(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE,
+                    MIME_PLAINTEXT, "Too many watches open");
+            r.addHeader("Retry-After", "5");
+            return r;
+        }
+        NanoHTTPD.Response r = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                MIME_EVENT_STREAM, new WatchStream(sample, interval));
+        r.addHeader("Cache-Control", "no-cache");
+        r.setChunkedTransfer(true);
+        return r;
+    }
+
+    /**
+     * Body of a watch response: blocks between samples, and yields an event whenever the value changed.
+     * A watch holds its connection's thread for as long as it is open (hence maxWatchers),
+     * so each sample simply waits for the worker.
+     */
+    private class WatchStream extends InputStream {
+        private final Callable<Object> sample;
+        private final long interval;
+        private String last;
+        private long lastSent;
+        private byte[] pending;
+        private int pos;
+        private boolean closed;
+
+        WatchStream(Callable<Object> sample, long interval) {
+            this.sample = sample;
+            this.interval = interval;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (pending == null || pos == pending.length) {
+                if (closed || !nextEvent()) return -1;
+            }
+            int n = Math.min(len, pending.length - pos);
+            System.arraycopy(pending, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return pending == null ? 0 : pending.length - pos;
+        }
+
+        /**
+         * Waits for the next sample; pending is left empty if there is nothing to send yet.
+         *
+         * @return false if the watch was interrupted.
+         */
+        private boolean nextEvent() {
+            if (last != null) {
+                try {
+                    Thread.sleep(interval);
+                }
+                catch (InterruptedException e) { return false; }
+            }
+            String event = "value";
+            String value;
+            try {
+                value = formatHtml(worker.delegate(sample));
+            }
+            catch (InvocationTargetException e) { event = "error"; value = formatHtml(e.getCause()); }
+            catch (Exception e) { event = "error"; value = formatHtml(e); }
+
+            String key = event + ":" + value;
+            long now = System.currentTimeMillis();
+            if (!key.equals(last)) {
+                last = key;
+                pending = sseEvent(event, value).getBytes(StandardCharsets.UTF_8);
+            }
+            else if (now - lastSent >= WATCH_HEARTBEAT)
+                pending = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+            else
+                return true;
+            pos = 0;
+            lastSent = now;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                watchers.decrementAndGet();
+            }
+        }
+    }
+
+    private static String sseEvent(String event, String value) {
+        StringBuilder b = new StringBuilder();
+        b.append("event: ").append(event).append('\n');
+        for (String line : value.split("\r\n|\r|\n", -1))
+            b.append("data: ").append(line).append('\n');
+        return b.append('\n').toString();
+    }
+
+    // ----------
+    // Batch Part
+    // ----------
+
+    /**
+     * Runs a list of steps posted in the request body, one per line, all in a single
+     * delegation to the worker:
+     *   /{class}/{name}?call&...
+     *   /{class}/{name}?get[{ref}]
+     *   /{ref}?persist
+     * A value "#n" in a step refers to the result of the n-th step (counting from 1).
+     * Steps run in order, and the batch stops at the first step that fails.
+     */
+    private NanoHTTPD.Response batchPage(NanoHTTPD.IHTTPSession session) {
+        if (session.getMethod() != NanoHTTPD.Method.POST)
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT,
+                    "Batch steps must be POSTed");
+
+        Map<String, String> files = new HashMap<>();
+        try {
+            session.parseBody(files);
+        }
+        catch (IOException e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                    "Failed to read batch: " + e);
+        }
+        catch (NanoHTTPD.ResponseException e) {
+            return new NanoHTTPD.Response(e.getStatus(), MIME_PLAINTEXT, e.getMessage());
+        }
+        // Raw body, or a form field for clients that can only post forms
+        String text = files.get("postData");
+        if (text == null) text = session.getParms().get("steps");
+        if (text == null)
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Batch has no steps");
+
+        // Resolve all the steps before running any of them
+        List<BatchStep> steps = new ArrayList<>();
+        for (String line : text.split("\r\n|\r|\n")) {
+            line = line.trim();
+            if (line.length() == 0) continue;
+            try {
+                steps.add(batchStep(line));
+            }
+            catch (ValueFormatError e) {
+                return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                        "Invalid step " + (steps.size() + 1) + ": " + line);
+            }
+            catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException e) {
+                return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, MIME_PLAINTEXT,
+                        "Step " + (steps.size() + 1) + ": " + e.toString());
+            }
+        }
+
+        // The whole batch is a single job for the worker; the page is built on the sending thread
+        WorkerTask<Object> task = worker.submit(() -> {
+            for (BatchStep step : steps) {
+                try {
+                    step.run(steps);
+                    step.done = true;
+                }
+                catch (InvocationTargetException e) { step.error = e.getCause(); break; }
+                catch (Exception e) { step.error = e; break; }
+            }
+            return null;
+        });
+        NanoHTTPD.DeferredResponse response = new NanoHTTPD.DeferredResponse();
+        response.setCancelHandler(() -> task.cancel(false));
+        task.whenDone(() -> response.complete(() -> batchResultPage(task, steps)));
+        return response;
+    }
+
+    private NanoHTTPD.Response batchResultPage(WorkerTask<Object> task, List<BatchStep> steps) {
+        try {
+            task.result();
+        }
+        catch (Exception e) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                    "Batch failed: " + e);
+        }
+
+        StringBuilder payload = new StringBuilder();
+        for (BatchStep step : steps) {
+            if (step.done)
+                payload.append(String.format("<li>%s = %s %s</li>\n", step.description, formatHtml(step.value),
+                        step.ref == null ? "" : String.format("<a href=\"%s\">%s</a>",
+                                objectRefUrl(step.ref, step.value.getClass().getName()), step.ref)));
+            else if (step.error != null)
+                payload.append(String.format("<li class=\"error\">%s !! %s</li>\n", step.description, formatHtml(step.error)));
+            else
+                payload.append(String.format("<li class=\"skipped\">%s</li>\n", step.description));
+        }
+        return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, MIME_HTML,
+                String.format(BASE_TEMPLATE, String.format("<ol>%s</ol>", payload)));
+    }
+
+    private abstract static class BatchStep {
+        final String description;
+        boolean done;
+        Object value;
+        /**
+         * How later steps refer to the value: "[{uuid}]" or "${name}"; null if there is no value.
+         */
+        String ref;
+        Throwable error;
+
+        BatchStep(String description) {
+            this.description = description;
+        }
+
+        abstract void run(List<BatchStep> steps) throws Exception;
+    }
+
+    private BatchStep batchStep(String spec)
+            throws ValueFormatError, ClassNotFoundException, NoSuchMethodException, NoSuchFieldException {
+        String[] split = spec.split("[?]", 2);
+        String path = removeLeading(split[0], "/");
+        String query = split.length > 1 ? split[1] : "";
+        String verb = Router.verb(query);
+
+        if ("call".equals(verb)) {
+            MethodCall q = MethodCall.fromStrings(path, removeLeading(query.substring(4), "&"));
+            Invoker invoker = Invoker.of(q);
+            return new BatchStep(invoker.method.toGenericString()) {
+                void run(List<BatchStep> steps) throws Exception {
+                    q.thisArg = stepRef(q.thisArg, steps);
+                    for (int i = 0; i < q.argumentValues.size(); i++)
+                        q.argumentValues.set(i, stepRef(q.argumentValues.get(i), steps));
+                    value = invoker.invoke(q.thisArgActual(parser), q.argumentActualValues(parser));
+                    if (value != null) ref = "[" + store.add(value) + "]";
+                }
+            };
+        }
+        else if ("get".equals(verb)) {
+            String[] member = path.split("/", 2);
+            if (member.length < 2) throw new ValueFormatError();
+            Field field = ClassInfo.of(ValueParser.typeForName(member[0])).getField(member[1]).field;
+            String objRef = query.substring(3);
+            return new BatchStep(field.toGenericString()) {
+                void run(List<BatchStep> steps) throws Exception {
+                    Object obj = objRef.length() != 0 ? parser.parseReference(stepRef(objRef, steps), member[0]) : null;
+                    value = field.get(obj);
+                    if (value != null) ref = "[" + store.add(value) + "]";
+                }
+            };
+        }
+        else if ("persist".equals(verb)) {
+            return new BatchStep("persist " + path) {
+                void run(List<BatchStep> steps) throws Exception {
+                    UUID uuid = parser.parseUUID(stepRef(path, steps));
+                    ref = store.persist(uuid);
+                    value = store.get(uuid);
+                }
+            };
+        }
+        else
+            throw new ValueFormatError();
+    }
+
+    /**
+     * Replaces "#n" with the reference to the result of step n.
+     */
+    private static String stepRef(String value, List<BatchStep> steps) throws ValueFormatError {
+        if (value == null || !value.startsWith("#")) return value;
+        int n;
+        try {
+            n = Integer.parseInt(value.substring(1));
+        }
+        catch (NumberFormatException e) {
+            throw new ValueFormatError();
+        }
+        BatchStep step = n >= 1 && n <= steps.size() ? steps.get(n - 1) : null;
+        if (step == null || !step.done)
+            throw new NoSuchElementException("step " + n + " has not run");
+        if (step.ref == null)
+            throw new NoSuchElementException("step " + n + " returned null");
+        return step.ref;
+    }
+
     private NanoHTTPD.Response persistAndRedirect(String path) {
         path = removeLeading(path, "/");
         try {
@@ -327,32 +961,93 @@ public class ReflectServer {
         InputStream open(String path);
     }
 
+    /**
+     * Provides static resources that are stored uncompressed in a file,
+     * so that they can be sent without copying them through the heap.
+     */
+    public interface StaticFileProvider {
+        NanoHTTPD.FileResponse open(String path, String mimeType) throws IOException;
+    }
+
     private List<StaticResourceProvider> staticResourceAdditional = new LinkedList<>();
+    private List<StaticFileProvider> staticFileAdditional = new LinkedList<>();
+
+    /**
+     * Gzipped static resources, by path; they are compressed on first request.
+     */
+    private Map<String, byte[]> staticGzipped = new ConcurrentHashMap<>();
+
+    private NanoHTTPD.Response staticResource(String path, Map<String, String> headers) {
+        String mimeType = "text/javascript";
+        String range = headers.get("range");
+        boolean gzip = range == null && Compression.GZIP.equals(Compression.negotiate(headers.get("accept-encoding")));
 
-    private NanoHTTPD.Response staticResource(String path) {
-        InputStream resourceStream = null;
+        byte[] gzipped = gzip ? staticGzipped.get(path) : null;
+        if (gzipped != null)
+            return gzippedResource(mimeType, gzipped);
+
+        NanoHTTPD.Response resource = openStaticResource(path, mimeType);
+        if (resource.getStatus() != NanoHTTPD.Response.Status.OK)
+            return resource;
+        if (gzip) {
+            try {
+                gzipped = Compression.gzip(resource);
+                staticGzipped.put(path, gzipped);
+                return gzippedResource(mimeType, gzipped);
+            }
+            catch (IOException e) {
+                return new NanoHTTPD.Response(NanoHTTPD.Response.Status.INTERNAL_ERROR, "", "" + e);
+            }
+        }
+        if (resource instanceof NanoHTTPD.FileResponse)
+            ((NanoHTTPD.FileResponse) resource).setRange(range);
+        return resource;
+    }
+
+    private NanoHTTPD.Response gzippedResource(String mimeType, byte[] gzipped) {
+        NanoHTTPD.Response r = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                mimeType, new ByteArrayInputStream(gzipped));
+        r.addHeader("Content-Encoding", Compression.GZIP);
+        r.addHeader("Vary", "Accept-Encoding");
+        return r;
+    }
+
+    private NanoHTTPD.Response openStaticResource(String path, String mimeType) {
     	try {
+    	    for (StaticFileProvider sfp : staticFileAdditional) {
+    	        NanoHTTPD.FileResponse fileResponse = sfp.open(path, mimeType);
+    	        if (fileResponse != null) return fileResponse;
+            }
+
+            InputStream resourceStream = null;
     	    for (StaticResourceProvider srp : staticResourceAdditional) {
     	        resourceStream = srp.open(path);
     	        if (resourceStream != null) break;
             }
-            if (resourceStream == null && path.startsWith("/js/"))
-                resourceStream = new FileInputStream(STATIC_ROOT_JS + path.substring(3));
-
     	    if (resourceStream != null)
 	    		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
-	    				"text/javascript", resourceStream);
+	    				mimeType, resourceStream);
+
+            if (path.startsWith("/js/"))
+                return new NanoHTTPD.FileResponse(mimeType, new File(STATIC_ROOT_JS + path.substring(3)));
 	    	else
 	    		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, "", "");
     	}
     	catch (FileNotFoundException e) {
     		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, "", "" + e);
     	}
+    	catch (IOException e) {
+    	    return new NanoHTTPD.Response(NanoHTTPD.Response.Status.INTERNAL_ERROR, "", "" + e);
+        }
     }
 
     public void registerStaticResources(StaticResourceProvider srp) {
         staticResourceAdditional.add(srp);
     }
+
+    public void registerStaticFiles(StaticFileProvider sfp) {
+        staticFileAdditional.add(sfp);
+    }
     
     private static String removeLeading(String s, String prefix) {
 		while (s.startsWith(prefix)) s = s.substring(prefix.length());
@@ -364,6 +1059,18 @@ public class ReflectServer {
     	return s;
     }
 
+    /**
+     * URL-decodes a query string; leaves it as it is if it is not well-formed.
+     */
+    private static String decodeQuery(String queryString) {
+        try {
+            return URLDecoder.decode(queryString == null ? "" : queryString, "UTF-8");
+        }
+        catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return queryString;
+        }
+    }
+
     // ----------------
     // ObjectStore Part
     // ----------------
@@ -378,6 +1085,16 @@ public class ReflectServer {
     // -----------
     interface Worker {
         <V> V delegate(Callable<V> callable) throws Exception;
+
+        /**
+         * Like delegate(), but returns without waiting for the result.
+         * Unless overridden, runs the code right away, on the calling thread.
+         */
+        default <V> WorkerTask<V> submit(Callable<V> callable) {
+            WorkerTask<V> task = new WorkerTask<>(callable);
+            task.run();
+            return task;
+        }
     }
     private Worker worker = new Worker() {
         public <V> V delegate(Callable<V> callable) throws Exception { return callable.call(); }
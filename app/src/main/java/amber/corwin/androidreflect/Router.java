@@ -0,0 +1,199 @@
+package amber.corwin.androidreflect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nanohttpd.NanoHTTPD;
+
+/**
+ * Dispatches requests to handlers without scanning every route in turn.
+ * <p/>
+ * Routes are looked up, in this order, by:
+ * - the exact path;
+ * - the first path segment, for the routers mounted under it;
+ * - the query verb, i.e. the letters the query string starts with ("call", "get", ...),
+ *   optionally restricted to paths with a given prefix;
+ * - a path prefix, bucketed by the first character after the leading "/";
+ * - the single-segment route, for paths of the form "/{segment}" or "/{segment}/".
+ * <p/>
+ * Each route counts its requests and the time spent in its handler.
+ */
+public class Router {
+
+    public interface Handler {
+        NanoHTTPD.Response serve(String path, String query, NanoHTTPD.IHTTPSession session);
+    }
+
+    public static class Route {
+        public final String name;
+        final String pathPrefix;
+        final Handler handler;
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Route(String name, String pathPrefix, Handler handler) {
+            this.name = name;
+            this.pathPrefix = pathPrefix;
+            this.handler = handler;
+        }
+
+        NanoHTTPD.Response serve(String path, String query, NanoHTTPD.IHTTPSession session) {
+            long start = System.nanoTime();
+            try {
+                return handler.serve(path, query, session);
+            }
+            finally {
+                nanos.addAndGet(System.nanoTime() - start);
+                requests.incrementAndGet();
+            }
+        }
+
+        public long getRequestCount() { return requests.get(); }
+
+        /**
+         * Time spent in the handler, up to returning the response (not sending it).
+         */
+        public long getTotalNanos() { return nanos.get(); }
+
+        @Override
+        public String toString() {
+            long n = requests.get();
+            return String.format("%s: %d requests, %d us avg", name, n, n == 0 ? 0 : nanos.get() / n / 1000);
+        }
+    }
+
+    private final Map<String, Route> exact = new ConcurrentHashMap<>();
+    private final Map<String, List<Route>> byVerb = new ConcurrentHashMap<>();
+    private final Map<Character, List<Route>> byPrefix = new ConcurrentHashMap<>();
+    private volatile Route singleSegment;
+    private final Map<String, Router> mounts = new ConcurrentHashMap<>();
+    private final List<Route> all = new CopyOnWriteArrayList<>();
+
+    public Router exact(String path, Handler handler) {
+        exact.put(path, add(new Route(path, null, handler)));
+        return this;
+    }
+
+    public Router verb(String verb, Handler handler) {
+        return verb(verb, null, handler);
+    }
+
+    /**
+     * @param pathPrefix if not null, the route only applies to paths that start with it.
+     */
+    public Router verb(String verb, String pathPrefix, Handler handler) {
+        Route r = add(new Route("?" + verb + (pathPrefix == null ? "" : " " + pathPrefix + "*"), pathPrefix, handler));
+        insert(byVerb, verb, r);
+        return this;
+    }
+
+    /**
+     * @param pathPrefix starts with "/", followed by at least one character.
+     */
+    public Router prefix(String pathPrefix, Handler handler) {
+        if (pathPrefix.length() < 2 || pathPrefix.charAt(0) != '/')
+            throw new IllegalArgumentException("invalid path prefix: " + pathPrefix);
+        Route r = add(new Route(pathPrefix + "*", pathPrefix, handler));
+        insert(byPrefix, pathPrefix.charAt(1), r);
+        return this;
+    }
+
+    /**
+     * Hands paths of the form "/{segment}/..." to another router, which sees them without "/{segment}".
+     */
+    public Router mount(String segment, Router router) {
+        mounts.put(segment, router);
+        return this;
+    }
+
+    public Router singleSegment(Handler handler) {
+        singleSegment = add(new Route("/{segment}", null, handler));
+        return this;
+    }
+
+    /**
+     * @return the handler's response, or null if no route applies.
+     */
+    public NanoHTTPD.Response serve(String path, String query, NanoHTTPD.IHTTPSession session) {
+        Route r = exact.get(path);
+        if (r == null && !mounts.isEmpty()) {
+            int slash = path.indexOf('/', 1);
+            Router mounted = slash > 0 ? mounts.get(path.substring(1, slash)) : null;
+            if (mounted != null) return mounted.serve(path.substring(slash), query, session);
+        }
+        if (r == null && query != null) {
+            String verb = verb(query);
+            if (verb != null) r = match(byVerb.get(verb), path);
+        }
+        if (r == null && path.length() > 1)
+            r = match(byPrefix.get(path.charAt(1)), path);
+        if (r == null && isSingleSegment(path))
+            r = singleSegment;
+        return r == null ? null : r.serve(path, query, session);
+    }
+
+    /**
+     * @return the routes of this router, followed by those of the routers mounted on it.
+     */
+    public List<Route> getRoutes() {
+        List<Route> routes = new ArrayList<>(all);
+        for (Router mounted : mounts.values()) routes.addAll(mounted.getRoutes());
+        return routes;
+    }
+
+    private Route add(Route r) {
+        all.add(r);
+        return r;
+    }
+
+    /**
+     * Keeps each bucket ordered by decreasing prefix length, so the most specific route wins;
+     * routes without a prefix go last.
+     */
+    private static <K> void insert(Map<K, List<Route>> buckets, K key, Route r) {
+        synchronized (buckets) {
+            List<Route> bucket = buckets.get(key);
+            List<Route> updated = bucket == null ? new ArrayList<Route>() : new ArrayList<>(bucket);
+            int i = 0;
+            while (i < updated.size() && prefixLength(updated.get(i)) >= prefixLength(r)) i++;
+            updated.add(i, r);
+            buckets.put(key, updated);
+        }
+    }
+
+    private static int prefixLength(Route r) {
+        return r.pathPrefix == null ? 0 : r.pathPrefix.length();
+    }
+
+    private static Route match(List<Route> bucket, String path) {
+        if (bucket != null) {
+            for (Route r : bucket) {
+                if (r.pathPrefix == null || path.startsWith(r.pathPrefix)) return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the leading letters of the query string, or null if it does not start with a letter.
+     */
+    static String verb(String query) {
+        int i = 0;
+        while (i < query.length() && Character.isLetter(query.charAt(i))) i++;
+        return i == 0 ? null : query.substring(0, i);
+    }
+
+    /**
+     * Equivalent to <code>path.matches("/[^/]*&#47;?")</code>.
+     */
+    static boolean isSingleSegment(String path) {
+        if (!path.startsWith("/")) return false;
+        int slash = path.indexOf('/', 1);
+        return slash == -1 || slash == path.length() - 1;
+    }
+}
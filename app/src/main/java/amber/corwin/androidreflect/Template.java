@@ -0,0 +1,53 @@
+package amber.corwin.androidreflect;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page fragment with "{}" slots, compiled once: the text between the slots is kept
+ * as UTF-8 bytes, so that rendering only has to encode what goes into the slots.
+ */
+class Template {
+
+    /**
+     * Content that writes itself into a slot, e.g. a list of rows.
+     */
+    interface Part {
+        void writeTo(PageWriter out) throws IOException;
+    }
+
+    private static final String SLOT = "{}";
+
+    private final byte[][] fragments;
+
+    private Template(byte[][] fragments) {
+        this.fragments = fragments;
+    }
+
+    static Template compile(String text) {
+        List<byte[]> fragments = new ArrayList<>();
+        int from = 0;
+        for (int slot; (slot = text.indexOf(SLOT, from)) != -1; from = slot + SLOT.length())
+            fragments.add(text.substring(from, slot).getBytes(StandardCharsets.UTF_8));
+        fragments.add(text.substring(from).getBytes(StandardCharsets.UTF_8));
+        return new Template(fragments.toArray(new byte[fragments.size()][]));
+    }
+
+    /**
+     * @param args one per slot: a {@link Part}, or any other object, written as its toString()
+     *             (null as nothing).
+     */
+    void render(PageWriter out, Object... args) throws IOException {
+        if (args.length != fragments.length - 1)
+            throw new IllegalArgumentException("template has " + (fragments.length - 1) + " slots, got " + args.length);
+        for (int i = 0; i < args.length; i++) {
+            out.write(fragments[i]);
+            Object arg = args[i];
+            if (arg instanceof Part) ((Part) arg).writeTo(out);
+            else if (arg != null) out.write(arg.toString());
+        }
+        out.write(fragments[args.length]);
+    }
+}
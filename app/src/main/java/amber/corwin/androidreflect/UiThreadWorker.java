@@ -0,0 +1,68 @@
+package amber.corwin.androidreflect;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs delegated code on the UI thread.
+ * <p/>
+ * Calls are queued, and a single message posted to the main looper runs all those that are
+ * pending, rather than one message per call. A message stops after FRAME_BUDGET_MS and posts
+ * another one for the rest, so that a burst of calls does not hold up drawing.
+ * Calls made on the UI thread itself run right away.
+ * submit() returns without waiting, so that the calling thread can be put to other use.
+ */
+class UiThreadWorker implements ReflectServer.Worker {
+
+    /**
+     * How long one message may keep running calls; about half a frame at 60 Hz.
+     */
+    static final long FRAME_BUDGET_MS = 8;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Queue<WorkerTask<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            long deadline = SystemClock.uptimeMillis() + FRAME_BUDGET_MS;
+            while (true) {
+                WorkerTask<?> task = queue.poll();
+                if (task == null) {
+                    scheduled.set(false);
+                    // A call may have been queued after the poll but before the flag was cleared
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+                task.run();  // does nothing if it was cancelled meanwhile
+                if (SystemClock.uptimeMillis() >= deadline && !queue.isEmpty()) {
+                    handler.post(this);  // still scheduled; continue in the next message
+                    return;
+                }
+            }
+        }
+    };
+
+    @Override
+    public <V> V delegate(Callable<V> code) throws Exception {
+        if (Looper.myLooper() == Looper.getMainLooper())
+            return code.call();
+        return submit(code).result();
+    }
+
+    @Override
+    public <V> WorkerTask<V> submit(Callable<V> code) {
+        WorkerTask<V> task = new WorkerTask<>(code);
+        queue.add(task);
+        if (scheduled.compareAndSet(false, true))
+            handler.post(drain);
+        return task;
+    }
+}
@@ -0,0 +1,71 @@
+package amber.corwin.androidreflect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Code handed to a {@link ReflectServer.Worker}, and its result once it has run.
+ * Callbacks can be attached to run when it is done, and it can be cancelled while it is still waiting.
+ */
+public class WorkerTask<V> extends FutureTask<V> {
+
+    private List<Runnable> callbacks;
+
+    public WorkerTask(Callable<V> callable) {
+        super(callable);
+    }
+
+    /**
+     * Runs <code>callback</code> when the task is done (or cancelled), on the thread that
+     * completes it; right away if it already is.
+     */
+    public void whenDone(Runnable callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (callbacks == null) callbacks = new ArrayList<>(1);
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> l;
+        synchronized (this) {
+            l = callbacks;
+            callbacks = null;
+        }
+        if (l != null) {
+            for (Runnable callback : l) callback.run();
+        }
+    }
+
+    /**
+     * Waits for the task, and returns its result or throws what it threw.
+     */
+    public V result() throws Exception {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return get();
+                }
+                catch (InterruptedException e) { interrupted = true; }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw e;
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
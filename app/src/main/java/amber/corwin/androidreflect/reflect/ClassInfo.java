@@ -0,0 +1,206 @@
+package amber.corwin.androidreflect.reflect;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static amber.corwin.androidreflect.reflect.MethodCall_jdk_lt_8.methodSimpleSignature;
+
+/**
+ * Reflection metadata of a class, computed once and then shared by all requests:
+ * sorted method and field tables, with their display signatures and URLs, and indexes
+ * for looking members up by signature.
+ * (ClassValue would be the natural place to keep these, but Android does not have it.)
+ */
+public class ClassInfo {
+
+    private static final ConcurrentHashMap<Class<?>, ClassInfo> cache = new ConcurrentHashMap<>();
+
+    public final Class<?> type;
+    public final MethodInfo[] methods;
+    public final FieldInfo[] fields;
+
+    private final Map<String, MethodInfo> methodsBySignature;
+    private final Map<String, FieldInfo> fieldsByName;
+
+    public static ClassInfo of(Class<?> c) {
+        ClassInfo info = cache.get(c);
+        if (info == null) {
+            info = new ClassInfo(c);
+            ClassInfo raced = cache.putIfAbsent(c, info);
+            if (raced != null) info = raced;
+        }
+        return info;
+    }
+
+    private ClassInfo(Class<?> c) {
+        type = c;
+
+        Method[] ms = c.getMethods();
+        methods = new MethodInfo[ms.length];
+        methodsBySignature = new HashMap<>(ms.length * 2);
+        for (int i = 0; i < ms.length; i++) {
+            methods[i] = new MethodInfo(ms[i]);
+        }
+        Arrays.sort(methods, new Comparator<MethodInfo>() {
+            @Override
+            public int compare(MethodInfo a, MethodInfo b) {
+                int c = a.method.getName().compareTo(b.method.getName());
+                if (c == 0) c = a.parameterTypes.length - b.parameterTypes.length;
+                if (c == 0) c = a.signature.compareTo(b.signature);
+                return c;
+            }
+        });
+        for (MethodInfo m : methods) {
+            // getMethods() may list an override next to a bridge with the same signature; keep the first
+            if (!methodsBySignature.containsKey(m.signature))
+                methodsBySignature.put(m.signature, m);
+        }
+
+        Field[] fs = c.getFields();
+        fields = new FieldInfo[fs.length];
+        fieldsByName = new HashMap<>(fs.length * 2);
+        for (int i = 0; i < fs.length; i++) {
+            fields[i] = new FieldInfo(fs[i]);
+        }
+        Arrays.sort(fields, new Comparator<FieldInfo>() {
+            @Override
+            public int compare(FieldInfo a, FieldInfo b) {
+                return a.field.getName().compareTo(b.field.getName());
+            }
+        });
+        for (FieldInfo f : fields) {
+            if (!fieldsByName.containsKey(f.field.getName()))
+                fieldsByName.put(f.field.getName(), f);
+        }
+    }
+
+    /**
+     * Looks up a public method by name and the names of its parameter types (as in Class.getName()),
+     * without loading the parameter classes.
+     */
+    public MethodInfo getMethod(String name, List<String> parameterTypes) throws NoSuchMethodException {
+        MethodInfo m = methodsBySignature.get(signature(name, parameterTypes.toArray(new String[0])));
+        if (m == null)
+            throw new NoSuchMethodException(type.getName() + "." + name + parameterTypes);
+        return m;
+    }
+
+    /**
+     * Looks up the method named by a call specification.
+     *
+     * @throws ClassNotFoundException if the method is not found because one of the parameter types does not exist.
+     */
+    public MethodInfo getMethod(MethodCall q) throws NoSuchMethodException, ClassNotFoundException {
+        try {
+            return getMethod(q.name, q.parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            q.parameterClasses();  // report unknown parameter types as such
+            throw e;
+        }
+    }
+
+    public FieldInfo getField(String name) throws NoSuchFieldException {
+        FieldInfo f = fieldsByName.get(name);
+        if (f == null)
+            throw new NoSuchFieldException(name);
+        return f;
+    }
+
+    private static String signature(String name, String[] parameterTypes) {
+        StringBuilder b = new StringBuilder(name).append('(');
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) b.append(',');
+            b.append(parameterTypes[i]);
+        }
+        return b.append(')').toString();
+    }
+
+    public static class MethodInfo {
+        public final Method method;
+        public final Class<?>[] parameterTypes;
+        public final boolean isStatic;
+        /**
+         * Name and parameter type names, as used for lookup, e.g. "valueOf(int)".
+         */
+        public final String signature;
+        /**
+         * Succinct form for display, e.g. "static String valueOf(int)".
+         */
+        public final String simpleSignature;
+
+        private final String callUrlPrefix;
+        private final String callUrlParameters;
+        /**
+         * The call URL without a this-reference filled in.
+         */
+        public final String callUrl;
+
+        MethodInfo(Method m) {
+            method = m;
+            parameterTypes = m.getParameterTypes();
+            isStatic = Modifier.isStatic(m.getModifiers());
+            String[] names = new String[parameterTypes.length];
+            StringBuilder params = new StringBuilder();
+            for (int i = 0; i < parameterTypes.length; i++) {
+                names[i] = parameterTypes[i].getName();
+                params.append('&').append(names[i]);
+            }
+            signature = signature(m.getName(), names);
+            simpleSignature = methodSimpleSignature(m);
+            // "/{class}/{name}?call&{param1-type}&{param2-type}&..."
+            callUrlPrefix = "/" + m.getDeclaringClass().getName() + "/" + m.getName() + "?call";
+            callUrlParameters = params.toString();
+            callUrl = callUrl(null);
+        }
+
+        private volatile Invoker invoker;
+
+        /**
+         * @return the invoker for this method, created on first use.
+         */
+        public Invoker invoker() {
+            Invoker i = invoker;
+            if (i == null)
+                invoker = i = new Invoker(method);
+            return i;
+        }
+
+        /**
+         * @param thisRef reference to the object to call the method on, or null to leave it blank.
+         */
+        public String callUrl(String thisRef) {
+            if (isStatic)
+                return callUrlPrefix + callUrlParameters;
+            else if (thisRef == null)
+                return callUrlPrefix + "&this" + callUrlParameters;
+            else
+                return callUrlPrefix + "&this=" + thisRef + callUrlParameters;
+        }
+    }
+
+    public static class FieldInfo {
+        public final Field field;
+        public final boolean isStatic;
+        public final String simpleSignature;
+        /**
+         * "/{class}/{name}?get"
+         */
+        public final String getUrl;
+
+        FieldInfo(Field f) {
+            field = f;
+            isStatic = Modifier.isStatic(f.getModifiers());
+            // TODO toGenericString if JDK supports
+            simpleSignature = f.getType().toString() + " " + f.getName();
+            getUrl = "/" + f.getDeclaringClass().getName() + "/" + f.getName() + "?get";
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package amber.corwin.androidreflect.reflect;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import amber.corwin.androidreflect.reflect.ValueParser.ValueFormatError;
+
+/**
+ * A chain of member accesses, such as <code>$0.getWindow().getDecorView().getChildCount()</code>,
+ * parsed once into a tree that can be evaluated many times.
+ * <p/>
+ * Syntax:
+ *   expr    := primary ( "." name [ "(" [ expr ( "," expr )* ] ")" ] )*
+ *   primary := "$"name | "[" uuid "]" | class-name | integer | "string" | null | true | false
+ * A dotted name starting an expression is taken as the longest prefix that names a class,
+ * followed by static members (e.g. <code>java.lang.Integer.MAX_VALUE</code>).
+ * <p/>
+ * Members are looked up in the ClassInfo of the runtime class of the object they are accessed on;
+ * each node remembers what it last resolved, so evaluating the same expression again, on objects
+ * of the same classes, does not repeat the lookup.
+ */
+public abstract class Expression {
+
+    private static final int MAX_CACHED = 64;
+
+    private static final Map<String, Expression> cache = new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    public final String text;
+
+    Expression(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses an expression, or returns the one parsed earlier from the same text.
+     */
+    public static Expression compile(String text) throws ValueFormatError, ClassNotFoundException {
+        synchronized (cache) {
+            Expression e = cache.get(text);
+            if (e != null) return e;
+        }
+        Expression e = new Parser(text).parseAll();
+        synchronized (cache) {
+            cache.put(text, e);
+        }
+        return e;
+    }
+
+    /**
+     * @throws InvocationTargetException if a method called by the expression throws.
+     */
+    public abstract Object evaluate(ValueParser parser) throws Exception;
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    // -----
+    // Nodes
+    // -----
+
+    static class Literal extends Expression {
+        final Object value;
+
+        Literal(String text, Object value) {
+            super(text);
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(ValueParser parser) {
+            return value;
+        }
+    }
+
+    static class Reference extends Expression {
+        Reference(String text) {
+            super(text);
+        }
+
+        @Override
+        public Object evaluate(ValueParser parser) throws ValueFormatError {
+            return parser.parseReference(text, "java.lang.Object");
+        }
+    }
+
+    /**
+     * Accesses a field or calls a method, either on the value of <code>target</code>,
+     * or statically on <code>staticType</code> when there is no target.
+     */
+    static class Member extends Expression {
+        final Expression target;
+        final Class<?> staticType;
+        final String name;
+        /**
+         * null for a field.
+         */
+        final Expression[] args;
+
+        /**
+         * What was resolved on the last evaluation, for the classes it was resolved for.
+         */
+        private volatile Resolved resolved;
+
+        Member(String text, Expression target, Class<?> staticType, String name, Expression[] args) {
+            super(text);
+            this.target = target;
+            this.staticType = staticType;
+            this.name = name;
+            this.args = args;
+        }
+
+        @Override
+        public Object evaluate(ValueParser parser) throws Exception {
+            Object obj = null;
+            Class<?> type = staticType;
+            if (target != null) {
+                obj = target.evaluate(parser);
+                if (obj == null)
+                    throw new NullPointerException(target.text + " is null");
+                type = obj.getClass();
+            }
+
+            if (args == null) {
+                Field field = resolveField(type).field;
+                return field.get(obj);
+            }
+
+            Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; i++)
+                values[i] = args[i].evaluate(parser);
+            return resolveMethod(type, values).invoker.invoke(obj, values);
+        }
+
+        private Resolved resolveField(Class<?> type) throws NoSuchFieldException {
+            Resolved r = resolved;
+            if (r != null && r.type == type) return r;
+
+            Field field = ClassInfo.of(type).getField(name).field;
+            if (target == null && !Modifier.isStatic(field.getModifiers()))
+                throw new NoSuchFieldException("not static: " + name);
+            try {
+                field.setAccessible(true);  // public, but possibly in a class that is not
+            }
+            catch (SecurityException e) { /* keep the access checks then */ }
+            resolved = r = new Resolved(type, null, field, null);
+            return r;
+        }
+
+        private Resolved resolveMethod(Class<?> type, Object[] values) throws NoSuchMethodException {
+            Class<?>[] argTypes = new Class<?>[values.length];
+            for (int i = 0; i < values.length; i++)
+                argTypes[i] = values[i] == null ? null : values[i].getClass();
+
+            Resolved r = resolved;
+            if (r != null && r.type == type && Arrays.equals(r.argTypes, argTypes)) return r;
+
+            ClassInfo.MethodInfo best = null;
+            int bestScore = -1;
+            for (ClassInfo.MethodInfo m : ClassInfo.of(type).methods) {
+                if (!m.method.getName().equals(name) || m.parameterTypes.length != values.length) continue;
+                if (target == null && !m.isStatic) continue;
+                int score = match(m.parameterTypes, values);
+                if (score > bestScore) {
+                    best = m;
+                    bestScore = score;
+                }
+            }
+            if (best == null)
+                throw new NoSuchMethodException(type.getName() + "." + name + " taking " + values.length + " arguments of these types");
+            resolved = r = new Resolved(type, argTypes, null, best.invoker());
+            return r;
+        }
+    }
+
+    private static class Resolved {
+        final Class<?> type;
+        final Class<?>[] argTypes;
+        final Field field;
+        final Invoker invoker;
+
+        Resolved(Class<?> type, Class<?>[] argTypes, Field field, Invoker invoker) {
+            this.type = type;
+            this.argTypes = argTypes;
+            this.field = field;
+            this.invoker = invoker;
+        }
+    }
+
+    // ---------------
+    // Overload choice
+    // ---------------
+
+    private static final List<Class<?>> WIDENING = Arrays.<Class<?>>asList(
+            byte.class, short.class, int.class, long.class, float.class, double.class);
+    private static final Map<Class<?>, Class<?>> PRIMITIVE_OF = new HashMap<>();
+    static {
+        PRIMITIVE_OF.put(Boolean.class, boolean.class);
+        PRIMITIVE_OF.put(Character.class, char.class);
+        PRIMITIVE_OF.put(Byte.class, byte.class);
+        PRIMITIVE_OF.put(Short.class, short.class);
+        PRIMITIVE_OF.put(Integer.class, int.class);
+        PRIMITIVE_OF.put(Long.class, long.class);
+        PRIMITIVE_OF.put(Float.class, float.class);
+        PRIMITIVE_OF.put(Double.class, double.class);
+    }
+
+    /**
+     * @return -1 if the values cannot be passed for these parameters; otherwise, the number of
+     * parameters whose type is exactly that of the value, so that the closest overload wins.
+     */
+    static int match(Class<?>[] parameterTypes, Object[] values) {
+        int exact = 0;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            Class<?> p = parameterTypes[i];
+            Object v = values[i];
+            if (v == null) {
+                if (p.isPrimitive()) return -1;
+                continue;
+            }
+            Class<?> c = v.getClass();
+            if (p == c || p == PRIMITIVE_OF.get(c)) {
+                exact++;
+            }
+            else if (p.isPrimitive()) {
+                Class<?> prim = PRIMITIVE_OF.get(c);
+                if (prim == null) return -1;
+                // Method.invoke performs widening primitive conversions
+                int from = prim == char.class ? WIDENING.indexOf(int.class) : WIDENING.indexOf(prim);
+                int to = WIDENING.indexOf(p);
+                if (from < 0 || to < from) return -1;
+            }
+            else if (!p.isInstance(v)) return -1;
+        }
+        return exact;
+    }
+
+    // ------
+    // Parser
+    // ------
+
+    private static class Parser {
+        private final String s;
+        private int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Expression parseAll() throws ValueFormatError, ClassNotFoundException {
+            Expression e = parseExpression();
+            skipSpaces();
+            if (pos < s.length()) throw error("unexpected '" + s.charAt(pos) + "'");
+            return e;
+        }
+
+        private Expression parseExpression() throws ValueFormatError, ClassNotFoundException {
+            skipSpaces();
+            int start = pos;
+            Expression e = parsePrimary();
+            while (true) {
+                skipSpaces();
+                if (!peek('.')) return e;
+                pos++;
+                e = parseMember(start, e, null);
+            }
+        }
+
+        private Expression parseMember(int start, Expression target, Class<?> staticType)
+                throws ValueFormatError, ClassNotFoundException {
+            skipSpaces();
+            String name = parseName();
+            skipSpaces();
+            Expression[] args = null;
+            if (peek('(')) {
+                pos++;
+                List<Expression> l = new ArrayList<>();
+                skipSpaces();
+                if (!peek(')')) {
+                    while (true) {
+                        l.add(parseExpression());
+                        skipSpaces();
+                        if (peek(')')) break;
+                        expect(',');
+                    }
+                }
+                pos++;
+                args = l.toArray(new Expression[0]);
+            }
+            return new Member(s.substring(start, pos), target, staticType, name, args);
+        }
+
+        private Expression parsePrimary() throws ValueFormatError, ClassNotFoundException {
+            int start = pos;
+            if (pos >= s.length()) throw error("expression expected");
+            char c = s.charAt(pos);
+
+            if (c == '$') {
+                pos++;
+                parseName();
+                return new Reference(s.substring(start, pos));
+            }
+            if (c == '[') {
+                int end = s.indexOf(']', pos);
+                if (end < 0) throw error("missing ']'");
+                pos = end + 1;
+                return new Reference(s.substring(start, pos));
+            }
+            if (c == '"') return parseString();
+            if (c == '-' || Character.isDigit(c)) return parseNumber();
+
+            // A keyword, or a class name followed by static members
+            List<Integer> dots = new ArrayList<>();
+            parseName();
+            while (peek('.') && pos + 1 < s.length() && Character.isJavaIdentifierStart(s.charAt(pos + 1))) {
+                dots.add(pos);
+                pos++;
+                parseName();
+            }
+            String name = s.substring(start, pos);
+            if (dots.isEmpty()) {
+                if (name.equals("null")) return new Literal(name, null);
+                if (name.equals("true")) return new Literal(name, true);
+                if (name.equals("false")) return new Literal(name, false);
+            }
+            dots.add(pos);
+            for (int i = dots.size() - 1; i >= 0; i--) {
+                String className = s.substring(start, dots.get(i));
+                Class<?> type;
+                try {
+                    type = ValueParser.typeForName(className);
+                }
+                catch (ClassNotFoundException e) { continue; }
+                if (i == dots.size() - 1)
+                    return new Literal(className, type);
+                // The rest of the dotted name are members; the first is static
+                pos = dots.get(i) + 1;
+                return parseMember(start, null, type);
+            }
+            throw new ClassNotFoundException(name);
+        }
+
+        private Expression parseString() throws ValueFormatError {
+            int start = pos++;
+            StringBuilder b = new StringBuilder();
+            while (true) {
+                if (pos >= s.length()) throw error("unterminated string");
+                char c = s.charAt(pos++);
+                if (c == '"') break;
+                if (c == '\\') {
+                    if (pos >= s.length()) throw error("unterminated string");
+                    c = s.charAt(pos++);
+                    if (c == 'n') c = '\n';
+                    else if (c == 't') c = '\t';
+                }
+                b.append(c);
+            }
+            return new Literal(s.substring(start, pos), b.toString());
+        }
+
+        private Expression parseNumber() throws ValueFormatError {
+            int start = pos;
+            if (peek('-')) pos++;
+            while (pos < s.length() && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.')) pos++;
+            String digits = s.substring(start, pos);
+            try {
+                if (peek('L') || peek('l')) {
+                    pos++;
+                    return new Literal(s.substring(start, pos), Long.parseLong(digits));
+                }
+                if (digits.indexOf('.') >= 0)
+                    return new Literal(digits, Double.parseDouble(digits));
+                return new Literal(digits, Integer.parseInt(digits));
+            }
+            catch (NumberFormatException e) {
+                throw error("bad number " + digits);
+            }
+        }
+
+        private String parseName() throws ValueFormatError {
+            int start = pos;
+            if (pos >= s.length() || !Character.isJavaIdentifierPart(s.charAt(pos))) throw error("name expected");
+            while (pos < s.length() && Character.isJavaIdentifierPart(s.charAt(pos))) pos++;
+            return s.substring(start, pos);
+        }
+
+        private boolean peek(char c) {
+            return pos < s.length() && s.charAt(pos) == c;
+        }
+
+        private void expect(char c) throws ValueFormatError {
+            if (!peek(c)) throw error("'" + c + "' expected");
+            pos++;
+        }
+
+        private void skipSpaces() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private ValueFormatError error(String message) {
+            return new ValueFormatError(message + " at " + pos + " in " + s);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package amber.corwin.androidreflect.reflect;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Calls a method that has been resolved once, and kept in the ClassInfo of its class,
+ * so that repeated calls of the same signature skip the lookup.
+ * <p/>
+ * The method is made accessible up front: this skips the access check that
+ * Method.invoke would otherwise make on each call, and allows calling public
+ * methods inherited from non-public classes (such as StringBuilder.append).
+ * (MethodHandles would be faster still, but they require API level 26.)
+ */
+public class Invoker {
+
+    public final Method method;
+    private final boolean isStatic;
+    private final int arity;
+
+    Invoker(Method method) {
+        this.method = method;
+        isStatic = Modifier.isStatic(method.getModifiers());
+        arity = method.getParameterTypes().length;
+        try {
+            method.setAccessible(true);
+        }
+        catch (SecurityException e) { /* keep the access checks then */ }
+    }
+
+    /**
+     * Finds the invoker for a call specification.
+     */
+    public static Invoker of(MethodCall q) throws ClassNotFoundException, NoSuchMethodException {
+        return ClassInfo.of(q.class_()).getMethod(q).invoker();
+    }
+
+    /**
+     * @param thisArg ignored for static methods.
+     * @throws InvocationTargetException if the method itself throws.
+     */
+    public Object invoke(Object thisArg, Object[] args) throws InvocationTargetException, IllegalAccessException {
+        if (args.length != arity)
+            throw new IllegalArgumentException("expected " + arity + " arguments, got " + args.length);
+        if (!isStatic && thisArg == null)
+            throw new NullPointerException("no this argument for " + method.getName());
+        return method.invoke(isStatic ? null : thisArg, args);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ValueParser {
 
@@ -50,14 +51,21 @@ public class ValueParser {
 	
     /**
      * Looks for a class, including primitives.
-     * Uses the map PRIMITIVES.
+     * Uses the map PRIMITIVES, and remembers classes that were found.
      * @throws ClassNotFoundException
      */
     public static Class<?> typeForName(String name) throws ClassNotFoundException {
     		Class<?> c = PRIMITIVES.get(name);
-    		return c != null ? c : Class.forName(name);
+    		if (c == null) c = CLASSES.get(name);
+    		if (c == null) {
+    			c = Class.forName(name);
+    			CLASSES.put(name, c);
+    		}
+    		return c;
     }
     
+    static private Map<String, Class<?>> CLASSES = new ConcurrentHashMap<>();
+    
     static private Map<String, Class<?>> PRIMITIVES = new TreeMap<>();
     static {  // SLI5
     		for (Class<?> c : new Class<?>[] { int.class, byte.class, boolean.class, short.class, long.class, float.class, double.class, char.class, void.class })
@@ -66,6 +74,9 @@ public class ValueParser {
     
 
     @SuppressWarnings("serial")
-	public static class ValueFormatError extends Exception { }
+	public static class ValueFormatError extends Exception {
+		public ValueFormatError() { }
+		public ValueFormatError(String message) { super(message); }
+	}
 
 }
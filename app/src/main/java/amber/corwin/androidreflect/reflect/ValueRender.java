@@ -4,14 +4,50 @@ import java.lang.reflect.Array;
 
 
 
+/**
+ * Renders values as HTML, within bounds: arrays show at most maxElements elements and
+ * maxDepth levels of nesting, and the whole output stops growing at about maxLength characters
+ * (escaped, so all ASCII: characters are bytes). What is left out is counted in a "&#8230; N more" marker.
+ */
 public class ValueRender {
 
+    public static final int DEFAULT_MAX_ELEMENTS = 256;
+    public static final int DEFAULT_MAX_DEPTH = 4;
+    public static final int DEFAULT_MAX_LENGTH = 64 * 1024;
+
+    private static final String ELEMENT_OPEN = "<span class=\"array-element\">";
+    private static final String ELEMENT_CLOSE = "</span>";
+    private static final String ELLIPSIS = "&#8230;";
+
+    private final int maxElements;
+    private final int maxDepth;
+    private final int maxLength;
+
+    public ValueRender() {
+        this(DEFAULT_MAX_ELEMENTS, DEFAULT_MAX_DEPTH, DEFAULT_MAX_LENGTH);
+    }
+
+    public ValueRender(int maxElements, int maxDepth, int maxLength) {
+        this.maxElements = maxElements;
+        this.maxDepth = maxDepth;
+        this.maxLength = maxLength;
+    }
+
     /**
      * Library-independent HTML escaping function (https://stackoverflow.com/a/25228492/37639)
      */
     public static String escapeHTML(String s) {
         StringBuilder out = new StringBuilder(Math.max(16, s.length()));
+        appendEscaped(out, s, Integer.MAX_VALUE);
+        return out.toString();
+    }
+
+    /**
+     * @return how many characters of <code>s</code> did not fit before <code>limit</code>.
+     */
+    private static int appendEscaped(StringBuilder out, String s, int limit) {
         for (int i = 0; i < s.length(); i++) {
+            if (out.length() >= limit) return s.length() - i;
             char c = s.charAt(i);
             if (c > 127 || c == '"' || c == '<' || c == '>' || c == '&') {
                 out.append("&#");
@@ -21,30 +57,94 @@ public class ValueRender {
                 out.append(c);
             }
         }
-        return out.toString();
+        return 0;
     }
 
     public String renderObject(Object o) {
+        StringBuilder b = new StringBuilder();
+        render(b, o, 0);
+        return b.toString();
+    }
+
+    protected void render(StringBuilder b, Object o, int depth) {
         if (o == null) {
-            return "null";
+            b.append("null");
+        }
+        else if (o.getClass().isArray()) {
+            renderArray(b, o, depth);
         }
-        if (o.getClass().isArray()) {
-            return renderArray(o);
+        else {
+            more(b, appendEscaped(b, o.toString(), maxLength));
         }
-        else return escapeHTML(o.toString());
     }
 
-    protected String renderArray(Object arr) {
+    /**
+     * Primitive arrays are read through their own type, without boxing each element.
+     */
+    protected void renderArray(StringBuilder b, Object arr, int depth) {
         int length = Array.getLength(arr);
-        StringBuffer b = new StringBuffer();
         b.append("[");
-        for (int i = 0; i < length; i++) {
+        int i = 0;
+        if (depth >= maxDepth) {
+            // too deep to show any elements; only say how many there are
+        }
+        else if (arr instanceof Object[]) {
+            Object[] a = (Object[]) arr;
+            for (; i < length && element(b, i); i++) { render(b, a[i], depth + 1); b.append(ELEMENT_CLOSE); }
+        }
+        else if (arr instanceof int[]) {
+            int[] a = (int[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof byte[]) {
+            byte[] a = (byte[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof long[]) {
+            long[] a = (long[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof double[]) {
+            double[] a = (double[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof float[]) {
+            float[] a = (float[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof short[]) {
+            short[] a = (short[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof boolean[]) {
+            boolean[] a = (boolean[]) arr;
+            for (; i < length && element(b, i); i++) b.append(a[i]).append(ELEMENT_CLOSE);
+        }
+        else if (arr instanceof char[]) {
+            char[] a = (char[]) arr;
+            for (; i < length && element(b, i); i++) {
+                appendEscaped(b, String.valueOf(a[i]), Integer.MAX_VALUE);
+                b.append(ELEMENT_CLOSE);
+            }
+        }
+        if (i < length) {
             if (i > 0) b.append(", ");
-            Object el = Array.get(arr, i);
-            b.append("<span class=\"array-element\">");
-            b.append(renderObject(el));
-            b.append("</span>");
+            more(b, length - i);
         }
-        return b.toString();
+        b.append("]");
+    }
+
+    /**
+     * Opens the i-th element, unless the element count or the output length is used up.
+     */
+    private boolean element(StringBuilder b, int i) {
+        if (i >= maxElements || b.length() >= maxLength) return false;
+        if (i > 0) b.append(", ");
+        b.append(ELEMENT_OPEN);
+        return true;
+    }
+
+    private static void more(StringBuilder b, int omitted) {
+        if (omitted > 0) b.append(ELLIPSIS).append(" ").append(omitted).append(" more");
     }
 }
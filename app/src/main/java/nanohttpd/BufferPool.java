@@ -0,0 +1,148 @@
+package nanohttpd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Pool of reusable byte arrays for the server's I/O paths.
+ * <p/>
+ * <p>Arrays come in a few size tiers; a request is served from the smallest tier that fits.
+ * Each tier has a fixed number of slots, split in stripes picked by thread, so that threads
+ * rarely contend for the same slots and the pool never holds more than its budget. Arrays
+ * larger than the biggest tier are simply allocated, and left to the garbage collector.</p>
+ */
+public final class BufferPool {
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final int[] TIER_SIZES = {512, 4 * 1024, 8 * 1024, 16 * 1024, 64 * 1024};
+    private static final int STRIPES = 4;
+    private static final int MAX_SLOTS_PER_STRIPE = 16;
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_BYTES);
+
+    /**
+     * slots[tier] holds the stripes of the tier one after the other, <code>slotsPerStripe[tier]</code> each.
+     */
+    private final AtomicReferenceArray<byte[]>[] slots;
+    private final int[] slotsPerStripe;
+    private final long maxBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param maxBytes upper bound on the memory held by the pool, split evenly between the tiers.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        slots = new AtomicReferenceArray[TIER_SIZES.length];
+        slotsPerStripe = new int[TIER_SIZES.length];
+        long perTier = maxBytes / TIER_SIZES.length;
+        for (int t = 0; t < TIER_SIZES.length; t++) {
+            int n = (int) Math.min(MAX_SLOTS_PER_STRIPE, perTier / TIER_SIZES[t] / STRIPES);
+            slotsPerStripe[t] = n;
+            slots[t] = new AtomicReferenceArray<byte[]>(n * STRIPES);
+        }
+    }
+
+    /**
+     * @return the pool shared by the server's sessions and responses.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return an array of at least <code>minSize</code> bytes, with undefined contents.
+     */
+    public byte[] acquire(int minSize) {
+        int t = tier(minSize);
+        if (t < 0) {
+            misses.incrementAndGet();
+            return new byte[minSize];
+        }
+        int n = slotsPerStripe[t];
+        AtomicReferenceArray<byte[]> tierSlots = slots[t];
+        int base = stripe() * n;
+        for (int s = 0; s < STRIPES; s++) {
+            for (int i = 0; i < n; i++) {
+                int slot = (base + i) % tierSlots.length();
+                byte[] b = tierSlots.get(slot);
+                if (b != null && tierSlots.compareAndSet(slot, b, null)) {
+                    hits.incrementAndGet();
+                    return b;
+                }
+            }
+            // Stripe is empty; try the others before allocating
+            base += n;
+        }
+        misses.incrementAndGet();
+        return new byte[TIER_SIZES[t]];
+    }
+
+    /**
+     * Returns an array to the pool. It must not be used by the caller afterwards.
+     */
+    public void release(byte[] b) {
+        if (b == null) {
+            return;
+        }
+        int t = tier(b.length);
+        if (t < 0 || TIER_SIZES[t] != b.length) {
+            return;
+        }
+        int n = slotsPerStripe[t];
+        AtomicReferenceArray<byte[]> tierSlots = slots[t];
+        int base = stripe() * n;
+        for (int i = 0; i < n; i++) {
+            if (tierSlots.get(base + i) == null && tierSlots.compareAndSet(base + i, null, b)) {
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    private static int tier(int size) {
+        for (int t = 0; t < TIER_SIZES.length; t++) {
+            if (size <= TIER_SIZES[t]) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() % STRIPES);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the fraction of requests that were served from the pool.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of released arrays that did not fit in the pool.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,160 @@
+package nanohttpd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+
+/**
+ * Decodes a request body sent in the "chunked" transfer coding, as it is read.
+ * <p/>
+ * <p>The underlying stream is read in blocks; once the last chunk and the trailers have been
+ * read, whatever was read past them is pushed back, so the next request on the connection is
+ * left where it was. Chunk extensions and trailers are skipped.</p>
+ */
+class ChunkedInputStream extends InputStream {
+    private static final int BUFSIZE = 4096;
+    /**
+     * Longest chunk-size or trailer line accepted.
+     */
+    private static final int MAX_LINE = 4096;
+
+    private final PushbackInputStream in;
+    private byte[] buf;
+    private int pos;
+    private int lim;
+    /**
+     * Bytes left in the current chunk; -1 before the first chunk header has been read.
+     */
+    private long remaining = -1;
+    private boolean eof;
+
+    ChunkedInputStream(PushbackInputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0 && !nextChunk()) {
+            return -1;
+        }
+        int n = (int) Math.min(len, remaining);
+        if (pos < lim) {
+            n = Math.min(n, lim - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+        } else {
+            // Nothing buffered; read the chunk data straight into the caller's array
+            n = in.read(b, off, n);
+            if (n <= 0) {
+                throw new EOFException("chunked body ended unexpectedly");
+            }
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return eof ? 0 : (int) Math.min(Math.max(remaining, 0), lim - pos);
+    }
+
+    /**
+     * Reads up to the data of the next chunk.
+     *
+     * @return false once the last chunk has been read.
+     */
+    private boolean nextChunk() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (remaining == 0) {
+            readLine();  // CRLF after the data of the previous chunk
+        }
+        String line = readLine();
+        int end = line.indexOf(';');
+        String size = (end >= 0 ? line.substring(0, end) : line).trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad chunk size: " + size);
+        }
+        if (remaining < 0) {
+            throw new IOException("bad chunk size: " + size);
+        }
+        if (remaining == 0) {
+            // Skip the trailers, up to the blank line that ends the body
+            while (readLine().length() > 0) {
+            }
+            finish();
+            return false;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (pos == lim) {
+                fill();
+            }
+            byte c = buf[pos++];
+            if (c == '\n') {
+                int n = line.length();
+                return n > 0 && line.charAt(n - 1) == '\r' ? line.substring(0, n - 1) : line.toString();
+            }
+            if (line.length() == MAX_LINE) {
+                throw new IOException("chunk header too long");
+            }
+            line.append((char) (c & 0xff));
+        }
+    }
+
+    private void fill() throws IOException {
+        if (buf == null) {
+            buf = BufferPool.shared().acquire(BUFSIZE);
+        }
+        pos = 0;
+        lim = in.read(buf, 0, BUFSIZE);
+        if (lim <= 0) {
+            lim = 0;
+            throw new EOFException("chunked body ended unexpectedly");
+        }
+    }
+
+    /**
+     * Gives back the bytes read past the end of the body.
+     */
+    private void finish() throws IOException {
+        eof = true;
+        if (buf != null) {
+            if (pos < lim) {
+                in.unread(buf, pos, lim - pos);
+            }
+            BufferPool.shared().release(buf);
+            buf = null;
+            pos = lim = 0;
+        }
+    }
+
+    /**
+     * Does not close the connection; only returns the buffer if the body was not read to the end.
+     */
+    @Override
+    public void close() {
+        if (buf != null) {
+            BufferPool.shared().release(buf);
+            buf = null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package nanohttpd;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Writes everything written to it as chunks of the "chunked" transfer coding.
+ * close() writes the last, empty chunk, but leaves the underlying stream open.
+ * <p/>
+ * <p>Small writes are collected into a single chunk of up to <code>TARGET_CHUNK_SIZE</code> bytes,
+ * which goes out together with its header and trailing CRLF in one write; flush() sends whatever
+ * has been collected so far. Chunk sizes are written with a hex digit table, not formatted.</p>
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+    /**
+     * Room before the data in buf, for the chunk size (at most 8 hex digits) and its CRLF.
+     */
+    private static final int HEADER_ROOM = 10;
+    /**
+     * Chosen so that the header, the data and the trailing CRLF fill a 16 KB pooled buffer.
+     */
+    static final int TARGET_CHUNK_SIZE = 16 * 1024 - HEADER_ROOM - 2;
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    /**
+     * HEADER_ROOM bytes for the header, then the data of the pending chunk, then room for its CRLF.
+     */
+    private byte[] buf;
+    private int count;
+    private byte[] header;
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buf == null) {
+            buf = BufferPool.shared().acquire(HEADER_ROOM + TARGET_CHUNK_SIZE + 2);
+        }
+        buf[HEADER_ROOM + count++] = (byte) b;
+        if (count == TARGET_CHUNK_SIZE) {
+            writePending();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (count == 0 && len >= TARGET_CHUNK_SIZE) {
+            // Already big enough to be a chunk of its own; no need to copy it
+            if (header == null) {
+                header = new byte[HEADER_ROOM];
+            }
+            int start = header(header, len);
+            out.write(header, start, HEADER_ROOM - start);
+            out.write(b, off, len);
+            out.write(CRLF);
+            return;
+        }
+        if (buf == null) {
+            buf = BufferPool.shared().acquire(HEADER_ROOM + TARGET_CHUNK_SIZE + 2);
+        }
+        while (len > 0) {
+            int n = Math.min(len, TARGET_CHUNK_SIZE - count);
+            System.arraycopy(b, off, buf, HEADER_ROOM + count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == TARGET_CHUNK_SIZE) {
+                writePending();
+            }
+        }
+    }
+
+    /**
+     * Sends the chunk collected so far, then flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writePending();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            writePending();
+            out.write(LAST_CHUNK);
+            out.flush();
+            BufferPool.shared().release(buf);
+            buf = null;
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int start = header(buf, count);
+        int end = HEADER_ROOM + count;
+        buf[end++] = '\r';
+        buf[end++] = '\n';
+        out.write(buf, start, end - start);
+        count = 0;
+    }
+
+    /**
+     * Writes the chunk header for <code>len</code> bytes so that it ends at HEADER_ROOM.
+     *
+     * @return where the header starts.
+     */
+    private static int header(byte[] b, int len) {
+        int pos = HEADER_ROOM - 2;
+        b[pos] = '\r';
+        b[pos + 1] = '\n';
+        do {
+            b[--pos] = HEX[len & 0xf];
+            len >>>= 4;
+        } while (len != 0);
+        return pos;
+    }
+}
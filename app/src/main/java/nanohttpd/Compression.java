@@ -0,0 +1,110 @@
+package nanohttpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Content-coding support: choosing an encoding from "Accept-Encoding", and compressing bodies.
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Picks the content-coding to use for a client, preferring gzip over deflate.
+     *
+     * @param acceptEncoding value of the "accept-encoding" request header, may be null.
+     * @return GZIP, DEFLATE or null (send the body as is).
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding;
+            int semi = coding.indexOf(';');
+            if (semi >= 0) {
+                if (isZeroQuality(coding.substring(semi + 1))) continue;
+                name = coding.substring(0, semi);
+            }
+            name = name.trim().toLowerCase(Locale.US);
+            if (name.equals(GZIP) || name.equals("x-gzip")) return GZIP;
+            if (name.equals(DEFLATE)) deflate = true;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    private static boolean isZeroQuality(String params) {
+        params = params.trim();
+        if (!params.startsWith("q=")) return false;
+        try {
+            return Float.parseFloat(params.substring(2).trim()) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether bodies of this type are worth compressing (text, not already-compressed media).
+     * Event streams are not: the compressor would hold events back until it has enough to emit.
+     */
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String m = mimeType.toLowerCase(Locale.US);
+        if (m.startsWith("text/event-stream")) {
+            return false;
+        }
+        return m.startsWith("text/") || m.contains("javascript") || m.contains("json") || m.contains("xml");
+    }
+
+    /**
+     * Wraps a stream so that whatever is written to it comes out in the given content-coding.
+     */
+    static DeflaterOutputStream encoder(String encoding, OutputStream out) throws IOException {
+        return GZIP.equals(encoding) ? new GZIPOutputStream(out, BUFFER_SIZE) : new DeflaterOutputStream(out);
+    }
+
+    /**
+     * Reads the whole body of a response and gzips it; the body is consumed and closed.
+     * Meant for resources that are compressed once and then served many times.
+     */
+    public static byte[] gzip(NanoHTTPD.Response response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream z = encoder(GZIP, bytes);
+        try {
+            if (response instanceof NanoHTTPD.FileResponse) {
+                ((NanoHTTPD.FileResponse) response).writeBody(Channels.newChannel(z));
+            } else if (response.getData() != null) {
+                copy(response.getData(), z);
+            }
+        } finally {
+            z.close();
+            response.closeBody();
+        }
+        return bytes.toByteArray();
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = BufferPool.shared().acquire(BUFFER_SIZE);
+        try {
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(buf);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package nanohttpd;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keeps track of the open client connections of a server.
+ * <p/>
+ * <p>Registration is lock-free and capped at <code>maxConnections</code>. Connections are
+ * marked busy while a request is being served; a reaper thread closes those that have been
+ * idle for longer than the keep-alive timeout, so that clients which hold on to sockets
+ * cannot exhaust file descriptors and threads.</p>
+ * <p/>
+ * <p>A connection moves between idle, busy and closing with compare-and-set, so the reaper
+ * only closes a connection it has taken from idle to closing, and a connection that is
+ * already closing cannot become busy.</p>
+ */
+public class ConnectionRegistry {
+    public static final int DEFAULT_MAX_CONNECTIONS = 128;
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 15000;
+
+    private final Map<Socket, Connection> open = new ConcurrentHashMap<Socket, Connection>();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicInteger busyCount = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong reapedCount = new AtomicLong();
+
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile long keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private volatile Runnable onReap;
+    private Thread reaper;
+
+    /**
+     * An open connection, as tracked by the registry.
+     */
+    public final class Connection {
+        private static final int IDLE = 0;
+        private static final int BUSY = 1;
+        private static final int CLOSING = 2;
+
+        private final Socket socket;
+        private volatile long lastActive = System.currentTimeMillis();
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Called when a request has started to arrive on the connection.
+         *
+         * @return false if the connection is being closed, and the request must not be served.
+         */
+        public boolean busy() {
+            while (true) {
+                int s = state.get();
+                if (s == BUSY) return true;
+                if (s == CLOSING) return false;
+                if (state.compareAndSet(IDLE, BUSY)) {
+                    busyCount.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Called when the response has been sent; the keep-alive timeout counts from here.
+         */
+        public void idle() {
+            lastActive = System.currentTimeMillis();
+            if (state.compareAndSet(BUSY, IDLE)) {
+                busyCount.decrementAndGet();
+            }
+        }
+
+        /**
+         * Moves to closing for good, from whatever state the connection is in.
+         */
+        void closing() {
+            if (state.getAndSet(CLOSING) == BUSY) {
+                busyCount.decrementAndGet();
+            }
+        }
+
+        /**
+         * Moves from idle to closing, unless a request has started meanwhile.
+         */
+        boolean closeIfIdle() {
+            return state.compareAndSet(IDLE, CLOSING);
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+    }
+
+    /**
+     * @return the new connection, or null if the maximum number of connections is already open.
+     */
+    public Connection register(Socket socket) {
+        int n;
+        do {
+            n = openCount.get();
+            if (n >= maxConnections) {
+                rejectedCount.incrementAndGet();
+                return null;
+            }
+        } while (!openCount.compareAndSet(n, n + 1));
+        Connection connection = new Connection(socket);
+        open.put(socket, connection);
+        return connection;
+    }
+
+    public void unregister(Socket socket) {
+        Connection connection = open.remove(socket);
+        if (connection != null) {
+            connection.closing();
+            openCount.decrementAndGet();
+        }
+    }
+
+    public Connection get(Socket socket) {
+        return open.get(socket);
+    }
+
+    public void closeAll() {
+        for (Socket socket : open.keySet()) {
+            close(socket);
+        }
+    }
+
+    /**
+     * Closes the connections that have not been busy for longer than the keep-alive timeout.
+     *
+     * @return the number of connections closed.
+     */
+    public int reapIdle() {
+        long deadline = System.currentTimeMillis() - keepAliveTimeout;
+        int reaped = 0;
+        for (Connection connection : open.values()) {
+            if (connection.lastActive < deadline && connection.closeIfIdle()) {
+                close(connection.socket);
+                reaped++;
+            }
+        }
+        if (reaped > 0) {
+            reapedCount.addAndGet(reaped);
+            Runnable r = onReap;
+            if (r != null) r.run();
+        }
+        return reaped;
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        unregister(socket);
+    }
+
+    /**
+     * Starts the thread that closes idle connections.
+     *
+     * @param onReap called after connections have been closed by the reaper, may be null.
+     */
+    synchronized void startReaper(Runnable onReap) {
+        this.onReap = onReap;
+        if (reaper != null) {
+            return;
+        }
+        reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(Math.max(250, keepAliveTimeout / 4));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    reapIdle();
+                }
+            }
+        });
+        reaper.setDaemon(true);
+        reaper.setName("NanoHttpd Connection Reaper");
+        reaper.start();
+    }
+
+    synchronized void stopReaper() {
+        if (reaper != null) {
+            reaper.interrupt();
+            reaper = null;
+        }
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param keepAliveTimeout how long (in milliseconds) a connection may stay idle between requests.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    public int getBusyCount() {
+        return busyCount.get();
+    }
+
+    public int getIdleCount() {
+        return openCount.get() - busyCount.get();
+    }
+
+    /**
+     * @return number of connections refused because the maximum was reached.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of connections closed for being idle too long.
+     */
+    public long getReapedCount() {
+        return reapedCount.get();
+    }
+}
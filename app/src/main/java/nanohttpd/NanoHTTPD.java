@@ -11,7 +11,14 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -22,9 +29,23 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -77,6 +98,10 @@ public abstract class NanoHTTPD {
      * block the socket reading thread forever (or as long the browser is open).
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
+    /**
+     * Bodies smaller than this (in bytes) are sent uncompressed, since compressing them saves little.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
     /**
      * Common mime type for dynamic content: plain text
      */
@@ -92,8 +117,17 @@ public abstract class NanoHTTPD {
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
-    private Set<Socket> openConnections = new HashSet<Socket>();
+    private final ConnectionRegistry connections = new ConnectionRegistry();
     private Thread myThread;
+    /**
+     * How connections are accepted and waited on; see {@link Engine}.
+     */
+    private Engine engine = Engine.BLOCKING;
+    private SelectorEngine selectorEngine;
+    /**
+     * Smallest body that gets compressed for clients that accept it; negative disables compression.
+     */
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -117,7 +151,7 @@ public abstract class NanoHTTPD {
         this.hostname = hostname;
         this.myPort = port;
         setTempFileManagerFactory(new DefaultTempFileManagerFactory());
-        setAsyncRunner(new DefaultAsyncRunner());
+        setAsyncRunner(new PooledAsyncRunner());
     }
 
     private static final void safeClose(Closeable closeable) {
@@ -153,6 +187,11 @@ public abstract class NanoHTTPD {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
+        if (engine == Engine.SELECTOR) {
+            startSelectorEngine();
+            return;
+        }
+
         myServerSocket = new ServerSocket();
         myServerSocket.setReuseAddress(true);
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
@@ -163,34 +202,17 @@ public abstract class NanoHTTPD {
                 do {
                     try {
                         final Socket finalAccept = myServerSocket.accept();
-                        registerConnection(finalAccept);
+                        ClientHandler handler = new ClientHandler(finalAccept);
+                        if (!registerConnection(finalAccept)) {
+                            handler.reject();
+                            continue;
+                        }
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
-                        final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
-                                    }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
-                                }
-                            }
-                        });
+                        try {
+                            asyncRunner.exec(handler);
+                        } catch (RejectedExecutionException e) {
+                            handler.reject();
+                        }
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -199,6 +221,27 @@ public abstract class NanoHTTPD {
         //myThread.setDaemon(true);
         myThread.setName("NanoHttpd Main Listener");
         myThread.start();
+        connections.startReaper(null);
+    }
+
+    private void startSelectorEngine() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        myServerSocket = serverChannel.socket();
+        myServerSocket.setReuseAddress(true);
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        serverChannel.configureBlocking(false);
+
+        selectorEngine = new SelectorEngine(serverChannel);
+        myThread = new Thread(selectorEngine);
+        myThread.setName("NanoHttpd Main Selector");
+        myThread.start();
+        // Let the selector flush the keys of reaped connections, so their sockets are released
+        connections.startReaper(new Runnable() {
+            @Override
+            public void run() {
+                selectorEngine.wakeup();
+            }
+        });
     }
 
     /**
@@ -207,6 +250,10 @@ public abstract class NanoHTTPD {
     public void stop() {
         try {
             safeClose(myServerSocket);
+            connections.stopReaper();
+            if (selectorEngine != null) {
+                selectorEngine.wakeup();
+            }
             closeAllConnections();
             if (myThread != null) {
                 myThread.join();
@@ -216,13 +263,284 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Serves all the requests arriving on a single accepted connection, until it is closed.
+     */
+    protected class ClientHandler implements Runnable {
+        private final Socket acceptSocket;
+        protected HTTPSession session;
+
+        public ClientHandler(Socket acceptSocket) {
+            this.acceptSocket = acceptSocket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TempFileManager tempFileManager = tempFileManagerFactory.create();
+                session = new HTTPSession(tempFileManager, acceptSocket);
+                while (!acceptSocket.isClosed()) {
+                    session.execute();
+                }
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own SocketException
+                // to break the  "keep alive" loop above.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Called instead of run() when the AsyncRunner has no capacity left for this connection:
+         * answers with "503 Service Unavailable" and closes, so that clients back off.
+         */
+        public void reject() {
+            OutputStream outputStream = null;
+            try {
+                outputStream = acceptSocket.getOutputStream();
+                Response r = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server is busy, try again later.");
+                r.addHeader("Connection", "close");
+                r.addHeader("Retry-After", "1");
+                r.send(outputStream);
+            } catch (IOException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        protected void close() {
+            safeClose(acceptSocket);
+            unRegisterConnection(acceptSocket);
+            if (session != null) {
+                session.release();
+            }
+        }
+    }
+
+    /**
+     * Connection engine built on a {@link Selector}.
+     * <p/>
+     * <p>Idle keep-alive connections are only registered with the selector, so they hold no
+     * thread.  Once a connection becomes readable it is taken off the selector, switched to
+     * blocking mode and handed to the AsyncRunner, which serves the request(s) available on
+     * it with the usual {@link HTTPSession} and then parks it on the selector again.</p>
+     */
+    protected class SelectorEngine implements Runnable {
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        /**
+         * Connections that workers are done with, to be registered again by the selector thread.
+         */
+        private final Queue<SelectorConnection> parked = new ConcurrentLinkedQueue<SelectorConnection>();
+        /**
+         * Suspended connections whose response has become ready.
+         */
+        private final Queue<SelectorConnection> completed = new ConcurrentLinkedQueue<SelectorConnection>();
+
+        public SelectorEngine(ServerSocketChannel serverChannel) throws IOException {
+            this.serverChannel = serverChannel;
+            this.selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            List<SelectorConnection> ready = new ArrayList<SelectorConnection>();
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                while (serverChannel.isOpen()) {
+                    selector.select();
+                    registerParked(ready);
+                    processCompleted(ready);
+                    processSelectedKeys(ready);
+                    while (!ready.isEmpty()) {
+                        // Channels can only go back to blocking mode once their cancelled
+                        // keys have been flushed out of the selector.
+                        selector.selectNow();
+                        for (SelectorConnection connection : ready) {
+                            connection.dispatch();
+                        }
+                        ready.clear();
+                        processSelectedKeys(ready);
+                    }
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                safeClose(selector);
+            }
+        }
+
+        private void processSelectedKeys(List<SelectorConnection> ready) throws IOException {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    key.cancel();
+                    ready.add((SelectorConnection) key.attachment());
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                Socket socket = channel.socket();
+                if (!registerConnection(socket)) {
+                    new ClientHandler(socket).reject();
+                    continue;
+                }
+                try {
+                    socket.setSoTimeout(SOCKET_READ_TIMEOUT);
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new SelectorConnection(channel));
+                } catch (IOException e) {
+                    safeClose(socket);
+                    unRegisterConnection(socket);
+                }
+            }
+        }
+
+        private void registerParked(List<SelectorConnection> ready) {
+            SelectorConnection connection;
+            while ((connection = parked.poll()) != null) {
+                if (connection.isResumable()) {
+                    // Its response was ready before it got here
+                    ready.add(connection);
+                    continue;
+                }
+                try {
+                    // Suspended connections are watched too, to notice clients that hang up
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void processCompleted(List<SelectorConnection> ready) {
+            SelectorConnection connection;
+            while ((connection = completed.poll()) != null) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                // Without a valid key, it is either still on its way to registerParked(), or
+                // a worker already has it
+                if (key != null && key.isValid() && connection.isResumable()) {
+                    key.cancel();
+                    ready.add(connection);
+                }
+            }
+        }
+
+        void park(SelectorConnection connection) {
+            parked.add(connection);
+            selector.wakeup();
+        }
+
+        void complete(SelectorConnection connection) {
+            completed.add(connection);
+            selector.wakeup();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        /**
+         * A connection served by the selector engine; keeps its {@link HTTPSession} across requests.
+         */
+        protected class SelectorConnection extends ClientHandler {
+            private final SocketChannel channel;
+
+            public SelectorConnection(SocketChannel channel) {
+                super(channel.socket());
+                this.channel = channel;
+            }
+
+            void dispatch() {
+                ConnectionRegistry.Connection connection = connections.get(channel.socket());
+                if (connection != null && !connection.busy()) {
+                    // The reaper got to it first and is closing it
+                    close();
+                    return;
+                }
+                try {
+                    channel.configureBlocking(true);
+                    asyncRunner.exec(this);
+                } catch (RejectedExecutionException e) {
+                    reject();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            boolean isResumable() {
+                return session != null && session.isPendingDone();
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (session == null) {
+                        // The socket streams are only available in blocking mode
+                        session = new HTTPSession(tempFileManagerFactory.create(), channel.socket());
+                        session.suspendable = true;
+                    }
+                    if (session.isSuspended()) {
+                        session.resume();
+                    } else {
+                        session.execute();
+                    }
+                    // Keep going while the client has already sent more, since the
+                    // selector cannot see what is buffered in the session.
+                    while (!session.isSuspended() && channel.isOpen() && session.getInputStream().available() > 0) {
+                        session.execute();
+                    }
+
+                    if (session.isSuspended() && channel.isOpen()) {
+                        // Give the thread back until the response is ready
+                        channel.configureBlocking(false);
+                        park(this);
+                        session.whenPendingDone(new Runnable() {
+                            @Override
+                            public void run() {
+                                complete(SelectorConnection.this);
+                            }
+                        });
+                    } else if (channel.isOpen()) {
+                        channel.configureBlocking(false);
+                        park(this);
+                    } else {
+                        close();
+                    }
+                } catch (Exception e) {
+                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))
+                            && !(e instanceof SocketTimeoutException)) {
+                        e.printStackTrace();
+                    }
+                    close();
+                }
+            }
+        }
+    }
+
     /**
      * Registers that a new connection has been set up.
      *
      * @param socket the {@link Socket} for the connection.
+     * @return false if the maximum number of connections is already open; the caller should then turn it away.
      */
-    public synchronized void registerConnection(Socket socket) {
-        openConnections.add(socket);
+    public boolean registerConnection(Socket socket) {
+        return connections.register(socket) != null;
     }
 
     /**
@@ -231,17 +549,36 @@ public abstract class NanoHTTPD {
      * @param socket
      *            the {@link Socket} for the connection.
      */
-    public synchronized void unRegisterConnection(Socket socket) {
-        openConnections.remove(socket);
+    public void unRegisterConnection(Socket socket) {
+        connections.unregister(socket);
     }
 
     /**
      * Forcibly closes all connections that are open.
      */
-    public synchronized void closeAllConnections() {
-        for (Socket socket : openConnections) {
-            safeClose(socket);
-        }
+    public void closeAllConnections() {
+        connections.closeAll();
+    }
+
+    /**
+     * @return the registry of open connections, with their live counts.
+     */
+    public ConnectionRegistry getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sets how many connections may be open at once; further clients get "503 Service Unavailable".
+     */
+    public void setMaxConnections(int maxConnections) {
+        connections.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Sets how long (in milliseconds) a keep-alive connection may stay idle between requests before it is closed.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        connections.setKeepAliveTimeout(keepAliveTimeout);
     }
 
     public final int getListeningPort() {
@@ -362,6 +699,25 @@ public abstract class NanoHTTPD {
     //
     // ------------------------------------------------------------------------------- //
 
+    /**
+     * Chooses how connections are accepted and waited on. Takes effect on the next start().
+     *
+     * @param engine {@link Engine#BLOCKING} (the default) or {@link Engine#SELECTOR}.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets the smallest body size (in bytes) that is gzip- or deflate-compressed for clients that
+     * send a matching "Accept-Encoding". Only textual MIME types are compressed.
+     *
+     * @param compressionThreshold size in bytes; a negative value turns compression off.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
     /**
      * Pluggable strategy for asynchronously executing requests.
      *
@@ -402,8 +758,23 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Connection engines.
+     * <ul>
+     * <li>BLOCKING - a thread per connection, blocked reading the socket between keep-alive requests.</li>
+     * <li>SELECTOR - idle connections wait on a {@link Selector}; threads are only taken for requests
+     * that have arrived.</li>
+     * </ul>
+     */
+    public enum Engine {
+        BLOCKING, SELECTOR
+    }
+
     /**
      * Pluggable strategy for asynchronously executing requests.
+     * <p/>
+     * <p>Implementations may throw {@link RejectedExecutionException} when they are out of
+     * capacity; the server then answers the connection with "503 Service Unavailable".</p>
      */
     public interface AsyncRunner {
         void exec(Runnable code);
@@ -447,9 +818,9 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Default threading strategy for NanoHttpd.
+     * Simple threading strategy for NanoHttpd.
      * <p/>
-     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
+     * <p>Spawns a new Thread for every incoming request.  These are set
      * to <i>daemon</i> status, and named according to the request number.  The name is
      * useful when profiling the application.</p>
      */
@@ -466,6 +837,209 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Bounded threading strategy for NanoHttpd (the default).
+     * <p/>
+     * <p>Connections are handed to a pool of at most <code>maxThreads</code> daemon threads,
+     * <code>coreThreads</code> of which are kept around while idle.  When all threads are busy,
+     * extra threads are started up to <code>maxThreads</code>; only then do connections wait in a
+     * queue of <code>queueCapacity</code> entries, and when that is full too they are rejected
+     * (which the server turns into a 503 response).  Threads come before the queue because a
+     * connection may hold its thread for a long time (keep-alive, event streams), and queued
+     * connections would wait for all of that.</p>
+     * <p/>
+     * <p>On JVMs that support virtual threads (21+), {@link #virtual(int)} creates a runner that
+     * starts a virtual thread per connection instead, bounded by a number of permits.</p>
+     */
+    public static class PooledAsyncRunner implements AsyncRunner {
+        public static final int DEFAULT_CORE_THREADS = 4;
+        public static final int DEFAULT_MAX_THREADS = 32;
+        public static final int DEFAULT_QUEUE_CAPACITY = 64;
+        public static final long DEFAULT_KEEP_ALIVE_SECONDS = 30;
+
+        private final ThreadPoolExecutor executor;
+        private final ThreadFactory virtualThreads;
+        private final Semaphore virtualPermits;
+        private final AtomicInteger virtualActive = new AtomicInteger();
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        public PooledAsyncRunner() {
+            this(DEFAULT_CORE_THREADS, DEFAULT_MAX_THREADS, DEFAULT_QUEUE_CAPACITY);
+        }
+
+        public PooledAsyncRunner(int coreThreads, int maxThreads, int queueCapacity) {
+            final BlockingQueue<Runnable> queue = queueCapacity > 0 ?
+                    new ThreadsFirstQueue(queueCapacity) : new SynchronousQueue<Runnable>();
+            executor = new ThreadPoolExecutor(coreThreads, maxThreads,
+                    DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setDaemon(true);
+                            t.setName("NanoHttpd Request Processor (#" + requestCount.incrementAndGet() + ")");
+                            return t;
+                        }
+                    },
+                    new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                            if (queue instanceof ThreadsFirstQueue && !e.isShutdown()
+                                    && ((ThreadsFirstQueue) queue).force(r)) {
+                                return;  // the pool is at its maximum, but there is room to wait
+                            }
+                            rejectedCount.incrementAndGet();
+                            throw new RejectedExecutionException("NanoHttpd request pool exhausted");
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            if (queue instanceof ThreadsFirstQueue) {
+                ((ThreadsFirstQueue) queue).executor = executor;
+            }
+            virtualThreads = null;
+            virtualPermits = null;
+        }
+
+        private PooledAsyncRunner(ThreadFactory virtualThreads, int maxConcurrent) {
+            this.executor = null;
+            this.virtualThreads = virtualThreads;
+            this.virtualPermits = new Semaphore(maxConcurrent);
+        }
+
+        /**
+         * Creates a runner that serves every connection on its own virtual thread, with at most
+         * <code>maxConcurrent</code> connections in flight.
+         *
+         * @throws UnsupportedOperationException if the JVM has no virtual threads
+         */
+        public static PooledAsyncRunner virtual(int maxConcurrent) {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory == null) {
+                throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+            }
+            return new PooledAsyncRunner(factory, maxConcurrent);
+        }
+
+        public static boolean isVirtualThreadSupported() {
+            return virtualThreadFactory() != null;
+        }
+
+        /**
+         * Looks up <code>Thread.ofVirtual().name(...).factory()</code> reflectively, since it does
+         * not exist on Android or on older JVMs.
+         */
+        private static ThreadFactory virtualThreadFactory() {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+                        .getMethod("name", String.class, long.class)
+                        .invoke(builder, "NanoHttpd Virtual Request Processor #", 1L);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                        .getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void exec(final Runnable code) {
+            if (executor != null) {
+                executor.execute(code);
+                return;
+            }
+            if (!virtualPermits.tryAcquire()) {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("NanoHttpd request limit reached");
+            }
+            requestCount.incrementAndGet();
+            virtualActive.incrementAndGet();
+            virtualThreads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        code.run();
+                    } finally {
+                        virtualActive.decrementAndGet();
+                        virtualPermits.release();
+                    }
+                }
+            }).start();
+        }
+
+        public boolean isVirtual() {
+            return executor == null;
+        }
+
+        /**
+         * @return number of connections waiting for a worker thread.
+         */
+        public int getQueueDepth() {
+            return executor != null ? executor.getQueue().size() : 0;
+        }
+
+        /**
+         * @return number of workers currently serving a connection.
+         */
+        public int getActiveCount() {
+            return executor != null ? executor.getActiveCount() : virtualActive.get();
+        }
+
+        /**
+         * @return number of threads currently in the pool, busy or idle.
+         */
+        public int getPoolSize() {
+            return executor != null ? executor.getPoolSize() : virtualActive.get();
+        }
+
+        /**
+         * @return number of connections turned away with a 503 so far.
+         */
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        /**
+         * @return number of connections that have been served to completion.
+         */
+        public long getCompletedCount() {
+            return executor != null ? executor.getCompletedTaskCount() : requestCount.get() - virtualActive.get();
+        }
+
+        /**
+         * Stops accepting work and lets the running connections finish.
+         */
+        public void shutdown() {
+            if (executor != null) executor.shutdown();
+        }
+
+        /**
+         * Work queue that turns work away while the pool can still start a thread for it, so that
+         * ThreadPoolExecutor grows the pool before it queues anything.
+         */
+        @SuppressWarnings("serial")
+        private static class ThreadsFirstQueue extends LinkedBlockingQueue<Runnable> {
+            ThreadPoolExecutor executor;
+
+            ThreadsFirstQueue(int capacity) {
+                super(capacity);
+            }
+
+            @Override
+            public boolean offer(Runnable r) {
+                ThreadPoolExecutor e = executor;
+                if (e != null && e.getPoolSize() < e.getMaximumPoolSize() && e.getActiveCount() >= e.getPoolSize()) {
+                    return false;
+                }
+                return super.offer(r);
+            }
+
+            boolean force(Runnable r) {
+                return super.offer(r);
+            }
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -474,10 +1048,15 @@ public abstract class NanoHTTPD {
      * to an internal list, and deleted when no longer needed (that is,
      * when <code>clear()</code> is invoked at the end of processing a
      * request).</p>
+     * <p/>
+     * <p>Contents smaller than the memory threshold are kept in memory (see {@link HybridTempFile}),
+     * so small requests do not touch the file system at all.</p>
      */
     public static class DefaultTempFileManager implements TempFileManager {
+        public static final int DEFAULT_MEMORY_THRESHOLD = 16 * 1024;
         private String tmpdir;
         private final List<TempFile> tempFiles;
+        private int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
 
         public DefaultTempFileManager() {
             tmpdir = System.getProperty("java.io.tmpdir");
@@ -490,9 +1069,16 @@ public abstract class NanoHTTPD {
             tmpdir = path;
         }
 
+        /**
+         * @param memoryThreshold contents up to this many bytes stay in memory; 0 always uses files.
+         */
+        public void setMemoryThreshold(int memoryThreshold) {
+            this.memoryThreshold = memoryThreshold;
+        }
+
         @Override
         public TempFile createTempFile() throws Exception {
-            DefaultTempFile tempFile = new DefaultTempFile(tmpdir);
+            TempFile tempFile = memoryThreshold > 0 ? new HybridTempFile(tmpdir, memoryThreshold) : new DefaultTempFile(tmpdir);
             tempFiles.add(tempFile);
             return tempFile;
         }
@@ -544,6 +1130,129 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Temp file that keeps its contents in memory, as long as they are small.
+     * <p/>
+     * <p>Contents go to a heap buffer (taken from the {@link BufferPool}) until they grow past the
+     * threshold, or until someone asks for the file name; only then is a {@link DefaultTempFile}
+     * created and the contents moved there.</p>
+     */
+    public static class HybridTempFile implements TempFile {
+        private final String tempdir;
+        private final int threshold;
+        private byte[] buf;
+        private int count;
+        private DefaultTempFile file;
+        private final OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                HybridTempFile.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                HybridTempFile.this.write(b, off, len);
+            }
+        };
+
+        public HybridTempFile(String tempdir, int threshold) {
+            this.tempdir = tempdir;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public OutputStream open() throws Exception {
+            return stream;
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && count + len > threshold) {
+                spill();
+            }
+            if (file != null) {
+                file.fstream.write(b, off, len);
+                return;
+            }
+            if (buf == null) {
+                buf = BufferPool.shared().acquire(threshold);
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private void spill() throws IOException {
+            file = new DefaultTempFile(tempdir);
+            if (count > 0) {
+                file.fstream.write(buf, 0, count);
+            }
+            release();
+        }
+
+        public boolean isInMemory() {
+            return file == null;
+        }
+
+        public long length() {
+            return file == null ? count : file.file.length();
+        }
+
+        /**
+         * @return a stream to read the contents back from the beginning.
+         */
+        public InputStream getInputStream() throws IOException {
+            if (file == null) {
+                return new ByteArrayInputStream(buf == null ? new byte[0] : buf, 0, count);
+            }
+            return new FileInputStream(file.file);
+        }
+
+        /**
+         * @return the contents; a slice of the heap buffer or a read-only mapping of the file.
+         */
+        public ByteBuffer getBuffer() throws IOException {
+            if (file == null) {
+                return buf == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(buf, 0, count).slice();
+            }
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file.file, "r");
+            try {
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            } finally {
+                safeClose(randomAccessFile);
+            }
+        }
+
+        @Override
+        public void delete() throws Exception {
+            release();
+            count = 0;
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        /**
+         * Moves the contents to disk, if they are not there yet, since the caller needs an actual file.
+         */
+        @Override
+        public String getName() {
+            if (file == null) {
+                try {
+                    spill();
+                } catch (IOException e) {
+                    throw new Error(e); // we won't recover, so throw an error
+                }
+            }
+            return file.getName();
+        }
+
+        private void release() {
+            if (buf != null) {
+                BufferPool.shared().release(buf);
+                buf = null;
+            }
+        }
+    }
+
     /**
      * HTTP response. Return one of these from serve().
      */
@@ -560,10 +1269,18 @@ public abstract class NanoHTTPD {
          * Data of the response, may be null.
          */
         private InputStream data;
+        /**
+         * Writes the body instead of data, as it is sent; may be null.
+         */
+        private BodyWriter bodyWriter;
         /**
          * Headers for the HTTP response. Use addHeader() to add lines.
          */
         private Map<String, String> header = new HashMap<String, String>();
+        /**
+         * Names of the headers above, lowercase, for checking whether one is present.
+         */
+        private Set<String> lowercaseHeaderNames = new HashSet<String>();
         /**
          * The request method that spawned this response.
          */
@@ -572,6 +1289,18 @@ public abstract class NanoHTTPD {
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * Whether the client understands chunked transfer coding; HTTP/1.0 clients do not.
+         */
+        private boolean chunkedAllowed = true;
+        /**
+         * Content-coding accepted by the client (gzip or deflate), or null.
+         */
+        private String acceptedEncoding;
+        /**
+         * Smallest body to compress; negative when compression is off.
+         */
+        private int compressionThreshold = -1;
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -589,6 +1318,17 @@ public abstract class NanoHTTPD {
             this.data = data;
         }
 
+        /**
+         * A body that is written straight to the connection as it is produced, in chunked
+         * transfer coding, instead of being assembled up front.
+         */
+        public Response(IStatus status, String mimeType, BodyWriter bodyWriter) {
+            this.status = status;
+            this.mimeType = mimeType;
+            this.bodyWriter = bodyWriter;
+            this.chunkedTransfer = true;
+        }
+
         /**
          * Convenience method that makes an InputStream out of given text.
          */
@@ -607,6 +1347,7 @@ public abstract class NanoHTTPD {
          */
         public void addHeader(String name, String value) {
             header.put(name, value);
+            lowercaseHeaderNames.add(name.toLowerCase(Locale.US));
         }
 
         public String getHeader(String name) {
@@ -617,97 +1358,178 @@ public abstract class NanoHTTPD {
          * Sends given response to the socket.
          */
         protected void send(OutputStream outputStream) {
-            String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
             try {
-                if (status == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
-                }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
-
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
+                if (isCloseDelimited()) {
+                    addHeader("Connection", "close");
                 }
+                ResponseEncoder out = encodeHeaders();
 
-                if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+                boolean compressible = compressionThreshold >= 0 && Compression.isCompressible(mimeType)
+                        && !headerAlreadySent("content-encoding");
+                if (compressible && !headerAlreadySent("vary")) {
+                    out.header("Vary", "Accept-Encoding");
                 }
-
-                if (header != null) {
-                    for (String key : header.keySet()) {
-                        String value = header.get(key);
-                        pw.print(key + ": " + value + "\r\n");
+                boolean compress = compressible && acceptedEncoding != null && requestMethod != Method.HEAD;
+
+                if (isCloseDelimited()) {
+                    // Compression is never negotiated with such clients
+                    out.endHeaders();
+                    out.writeTo(outputStream);
+                    sendUntilClosed(outputStream);
+                } else if (requestMethod != Method.HEAD && chunkedTransfer) {
+                    if (compress) {
+                        out.header("Content-Encoding", acceptedEncoding);
+                    }
+                    out.transferEncodingChunked();
+                    out.endHeaders();
+                    out.writeTo(outputStream);
+                    if (compress) {
+                        sendCompressed(outputStream);
+                    } else {
+                        sendAsChunked(outputStream);
                     }
-                }
-
-                sendConnectionHeaderIfNotAlreadyPresent(pw, header);
-
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
-                    sendAsChunked(outputStream, pw);
                 } else {
                     int pending = data != null ? data.available() : 0;
-                    sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
-                    pw.print("\r\n");
-                    pw.flush();
-                    sendAsFixedLength(outputStream, pending);
+                    if (compress && pending >= compressionThreshold) {
+                        // The compressed length is not known up front, so stream it in chunks
+                        out.header("Content-Encoding", acceptedEncoding);
+                        out.transferEncodingChunked();
+                        out.endHeaders();
+                        out.writeTo(outputStream);
+                        sendCompressed(outputStream);
+                    } else {
+                        // A 304 has no body; a Content-Length would describe the cached one
+                        if (!headerAlreadySent("content-length") && status != Status.NOT_MODIFIED) {
+                            out.contentLength(pending);
+                        }
+                        out.endHeaders();
+                        if (requestMethod != Method.HEAD && data != null && pending <= ResponseEncoder.COALESCE_LIMIT) {
+                            // Small body: goes out in the same write as the headers
+                            pending -= out.appendBody(data, pending);
+                        }
+                        out.writeTo(outputStream);
+                        sendAsFixedLength(outputStream, pending);
+                    }
                 }
                 outputStream.flush();
-                safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
+            } finally {
+                closeBody();
             }
         }
 
-        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
-            if (!headerAlreadySent(header, "content-length")) {
-                pw.print("Content-Length: "+ size +"\r\n");
+        /**
+         * Sends given response to the socket.
+         *
+         * @param channel the channel of the socket, or null if it has none.
+         */
+        protected void send(OutputStream outputStream, WritableByteChannel channel) {
+            send(outputStream);
+        }
+
+        /**
+         * Encodes the status line and the headers common to all kinds of responses,
+         * leaving out the ones that describe the body.
+         */
+        ResponseEncoder encodeHeaders() {
+            if (status == null) {
+                throw new Error("sendResponse(): Status can't be null.");
+            }
+            ResponseEncoder out = ResponseEncoder.begin(status);
+
+            if (mimeType != null) {
+                out.contentType(mimeType);
+            }
+
+            if (!headerAlreadySent("date")) {
+                out.date();
+            }
+
+            for (Map.Entry<String, String> entry : header.entrySet()) {
+                out.header(entry.getKey(), entry.getValue());
+            }
+
+            if (!headerAlreadySent("connection")) {
+                out.connectionKeepAlive();
             }
+            return out;
         }
 
-        protected void sendConnectionHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header) {
-            if (!headerAlreadySent(header, "connection")) {
-                pw.print("Connection: keep-alive\r\n");
+        boolean headerAlreadySent(String lowercaseName) {
+            return lowercaseHeaderNames.contains(lowercaseName);
+        }
+
+        /**
+         * Streams the body through gzip or deflate, in chunked transfer coding.
+         */
+        private void sendCompressed(OutputStream outputStream) throws IOException {
+            DeflaterOutputStream z = Compression.encoder(acceptedEncoding, new ChunkedOutputStream(outputStream));
+            if (bodyWriter != null) {
+                bodyWriter.writeTo(z);
+            } else if (data != null) {
+                Compression.copy(data, z);
             }
+            // Finishes the compressed stream, releases the Deflater and writes the last chunk
+            z.close();
+        }
+
+        /**
+         * Releases whatever holds the body of this response.
+         */
+        void closeBody() {
+            safeClose(data);
         }
 
-        private boolean headerAlreadySent(Map<String, String> header, String name) {
-            boolean alreadySent = false;
-            for (String headerName : header.keySet()) {
-                alreadySent |= headerName.equalsIgnoreCase(name);
+        /**
+         * Sends the body as it is; the caller closes the connection after it.
+         */
+        private void sendUntilClosed(OutputStream outputStream) throws IOException {
+            if (bodyWriter != null) {
+                bodyWriter.writeTo(outputStream);
+            } else if (data != null) {
+                Compression.copy(data, outputStream);
             }
-            return alreadySent;
         }
 
-        private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-            pw.print("Transfer-Encoding: chunked\r\n");
-            pw.print("\r\n");
-            pw.flush();
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+        private void sendAsChunked(OutputStream outputStream) throws IOException {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream);
+            if (bodyWriter != null) {
+                bodyWriter.writeTo(chunked);
+            } else if (data != null) {
+                int BUFFER_SIZE = 16 * 1024;
+                byte[] buff = BufferPool.shared().acquire(BUFFER_SIZE);
+                try {
+                    int read;
+                    while ((read = data.read(buff, 0, BUFFER_SIZE)) > 0) {
+                        chunked.write(buff, 0, read);
+                        if (data.available() == 0) {
+                            // The body is being produced as we go; don't hold back what there is
+                            chunked.flush();
+                        }
+                    }
+                } finally {
+                    BufferPool.shared().release(buff);
+                }
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
+            chunked.close();
         }
 
         private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
             if (requestMethod != Method.HEAD && data != null) {
                 int BUFFER_SIZE = 16 * 1024;
-                byte[] buff = new byte[BUFFER_SIZE];
-                while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
-                    if (read <= 0) {
-                        break;
+                byte[] buff = BufferPool.shared().acquire(BUFFER_SIZE);
+                try {
+                    while (pending > 0) {
+                        int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
+                        if (read <= 0) {
+                            break;
+                        }
+                        outputStream.write(buff, 0, read);
+                        pending -= read;
                     }
-                    outputStream.write(buff, 0, read);
-                    pending -= read;
+                } finally {
+                    BufferPool.shared().release(buff);
                 }
             }
         }
@@ -720,63 +1542,364 @@ public abstract class NanoHTTPD {
             this.status = status;
         }
 
-        public String getMimeType() {
-            return mimeType;
-        }
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public void setMimeType(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public InputStream getData() {
+            return data;
+        }
+
+        public void setData(InputStream data) {
+            this.data = data;
+        }
+
+        public Method getRequestMethod() {
+            return requestMethod;
+        }
+
+        public void setRequestMethod(Method requestMethod) {
+            this.requestMethod = requestMethod;
+        }
+
+        public void setChunkedTransfer(boolean chunkedTransfer) {
+            this.chunkedTransfer = chunkedTransfer;
+        }
+
+        void setChunkedAllowed(boolean chunkedAllowed) {
+            this.chunkedAllowed = chunkedAllowed;
+        }
+
+        /**
+         * @return whether the body, whose length is not known up front, is ended by closing
+         * the connection, because the client cannot decode chunked transfer coding.
+         */
+        boolean isCloseDelimited() {
+            return chunkedTransfer && !chunkedAllowed && requestMethod != Method.HEAD;
+        }
+
+        /**
+         * @param acceptedEncoding content-coding the client accepts (see {@link Compression#negotiate}), or null.
+         * @param threshold smallest body size worth compressing.
+         */
+        public void setCompression(String acceptedEncoding, int threshold) {
+            this.acceptedEncoding = acceptedEncoding;
+            this.compressionThreshold = threshold;
+        }
+
+        /**
+         * Produces the body of a response, see {@link Response#Response(IStatus, String, BodyWriter)}.
+         */
+        public interface BodyWriter {
+            /**
+             * Writes the whole body to <code>out</code>, which is buffered, and must not be closed.
+             */
+            void writeTo(OutputStream out) throws IOException;
+        }
+
+        public interface IStatus {
+            int getRequestStatus();
+            String getDescription();
+        }
+
+        /**
+         * Some HTTP response status codes
+         */
+        public enum Status implements IStatus {
+            SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
+                    "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
+                    "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
+                    "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503, "Service Unavailable");
+            private final int requestStatus;
+            private final String description;
+
+            Status(int requestStatus, String description) {
+                this.requestStatus = requestStatus;
+                this.description = description;
+            }
+
+            @Override
+            public int getRequestStatus() {
+                return this.requestStatus;
+            }
+
+            @Override
+            public String getDescription() {
+                return "" + this.requestStatus + " " + description;
+            }
+        }
+    }
+
+    /**
+     * HTTP response whose body is (a region of) a file.
+     * <p/>
+     * <p>The length is known exactly, and the body is sent with {@link FileChannel#transferTo},
+     * straight to the socket when it has a channel, so that the data does not pass through
+     * the Java heap. A single byte range ("Range: bytes=...") can be served with
+     * {@link #setRange(String)}.</p>
+     */
+    public static class FileResponse extends Response {
+        private final FileChannel file;
+        private final Closeable owner;
+        private final long offset;
+        private final long length;
+        private long rangeStart;
+        private long rangeLength;
+
+        public FileResponse(String mimeType, File file) throws IOException {
+            this(mimeType, new FileInputStream(file));
+        }
+
+        public FileResponse(String mimeType, FileInputStream in) throws IOException {
+            this(mimeType, in, 0, in.getChannel().size());
+        }
+
+        /**
+         * Serves <code>length</code> bytes of <code>in</code>'s file, starting at <code>offset</code>;
+         * e.g. a resource inside an archive. <code>in</code> is closed once the response has been sent.
+         */
+        public FileResponse(String mimeType, FileInputStream in, long offset, long length) {
+            super(Status.OK, mimeType, (InputStream) null);
+            this.file = in.getChannel();
+            this.owner = in;
+            this.offset = offset;
+            this.length = length;
+            this.rangeStart = 0;
+            this.rangeLength = length;
+            addHeader("Accept-Ranges", "bytes");
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Narrows the response to the byte range requested.
+         * Malformed or multiple ranges are ignored, and the whole file is sent;
+         * a range that starts beyond the end of the file makes this a "416 Range Not Satisfiable".
+         *
+         * @param range value of the "range" request header, may be null.
+         */
+        public void setRange(String range) {
+            if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+                return;
+            }
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return;
+            }
+            long start, end;
+            try {
+                if (dash == 0) {
+                    // "bytes=-N": the last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(0, length - suffix);
+                    end = suffix > 0 ? length - 1 : -1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(dash + 1));
+                        if (end < start) {
+                            return;  // "bytes=5-3" is invalid rather than unsatisfiable (RFC 7233, 2.1)
+                        }
+                        end = Math.min(end, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (start >= length || end < start) {
+                setStatus(Status.RANGE_NOT_SATISFIABLE);
+                addHeader("Content-Range", "bytes */" + length);
+                rangeStart = 0;
+                rangeLength = 0;
+            } else {
+                setStatus(Status.PARTIAL_CONTENT);
+                addHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                rangeStart = start;
+                rangeLength = end - start + 1;
+            }
+        }
+
+        @Override
+        protected void send(OutputStream outputStream) {
+            send(outputStream, null);
+        }
+
+        @Override
+        protected void send(OutputStream outputStream, WritableByteChannel channel) {
+            try {
+                ResponseEncoder out = encodeHeaders();
+                if (!headerAlreadySent("content-length")) {
+                    out.contentLength(rangeLength);
+                }
+                out.endHeaders();
+                out.writeTo(outputStream);
+                outputStream.flush();
+
+                if (getRequestMethod() != Method.HEAD) {
+                    writeBody(channel != null ? channel : Channels.newChannel(outputStream));
+                    outputStream.flush();
+                }
+            } catch (IOException ioe) {
+                // Couldn't write? No can do.
+            } finally {
+                closeBody();
+            }
+        }
+
+        /**
+         * Transfers the (range of the) file to <code>target</code>.
+         */
+        void writeBody(WritableByteChannel target) throws IOException {
+            long position = offset + rangeStart;
+            long remaining = rangeLength;
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, target);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+
+        @Override
+        void closeBody() {
+            safeClose(owner);
+        }
+    }
+
+    /**
+     * A response that serve() returns before it is ready, while the actual response is
+     * produced elsewhere and handed over with complete(), from any thread.
+     * <p/>
+     * <p>Completing with a {@link Render} leaves the making of the response to the thread
+     * that sends it, so that the thread which completes it (e.g. the UI thread) only hands
+     * over the result.</p>
+     * <p/>
+     * <p>With the selector engine, the connection gives its thread back in the meantime, and if
+     * the client closes the connection first, the cancel handler is run. The blocking engine
+     * waits for the response on the connection's thread.</p>
+     */
+    public static class DeferredResponse extends Response {
+        /**
+         * Makes the actual response, on the thread that sends it.
+         */
+        public interface Render {
+            Response render();
+        }
+
+        private Render response;
+        private boolean cancelled;
+        private Runnable onComplete;
+        private Runnable onCancel;
 
-        public void setMimeType(String mimeType) {
-            this.mimeType = mimeType;
+        public DeferredResponse() {
+            super(Status.OK, MIME_PLAINTEXT, (InputStream) null);
         }
 
-        public InputStream getData() {
-            return data;
+        /**
+         * Hands over the actual response. Has no effect once cancelled, or if already complete.
+         */
+        public void complete(Response response) {
+            complete(() -> response);
         }
 
-        public void setData(InputStream data) {
-            this.data = data;
+        /**
+         * Hands over what makes the actual response, to be run when it is sent.
+         * Has no effect once cancelled, or if already complete.
+         */
+        public void complete(Render response) {
+            Runnable callback;
+            synchronized (this) {
+                if (this.response != null || cancelled) {
+                    return;
+                }
+                this.response = response;
+                callback = onComplete;
+                notifyAll();
+            }
+            if (callback != null) {
+                callback.run();
+            }
         }
 
-        public Method getRequestMethod() {
-            return requestMethod;
+        /**
+         * Sets what to run if the client goes away before the response is complete,
+         * e.g. to stop the work that would produce it.
+         */
+        public void setCancelHandler(Runnable onCancel) {
+            boolean now;
+            synchronized (this) {
+                this.onCancel = onCancel;
+                now = cancelled;
+            }
+            if (now) {
+                onCancel.run();
+            }
         }
 
-        public void setRequestMethod(Method requestMethod) {
-            this.requestMethod = requestMethod;
+        public synchronized boolean isDone() {
+            return response != null;
         }
 
-        public void setChunkedTransfer(boolean chunkedTransfer) {
-            this.chunkedTransfer = chunkedTransfer;
+        public synchronized boolean isCancelled() {
+            return cancelled;
         }
 
-        public interface IStatus {
-            int getRequestStatus();
-            String getDescription();
+        void cancel() {
+            Runnable callback;
+            synchronized (this) {
+                if (response != null || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                callback = onCancel;
+                notifyAll();
+            }
+            if (callback != null) {
+                callback.run();
+            }
         }
 
         /**
-         * Some HTTP response status codes
+         * Sets what to run once the response is complete; runs it right away if it already is.
          */
-        public enum Status implements IStatus {
-            SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
-                    "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
-                    "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                    "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
-            private final int requestStatus;
-            private final String description;
-
-            Status(int requestStatus, String description) {
-                this.requestStatus = requestStatus;
-                this.description = description;
+        void whenComplete(Runnable callback) {
+            synchronized (this) {
+                if (response == null) {
+                    onComplete = callback;
+                    return;
+                }
             }
+            callback.run();
+        }
 
-            @Override
-            public int getRequestStatus() {
-                return this.requestStatus;
+        Response await() throws IOException {
+            synchronized (this) {
+                try {
+                    while (response == null) {
+                        if (cancelled) {
+                            throw new SocketException("NanoHttpd Shutdown");
+                        }
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for the response");
+                }
             }
-
-            @Override
-            public String getDescription() {
-                return "" + this.requestStatus + " " + description;
+            try {
+                return response.render();
+            } catch (RuntimeException e) {
+                return new Response(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: " + e);
             }
         }
     }
@@ -844,34 +1967,67 @@ public abstract class NanoHTTPD {
     }
 
     protected class HTTPSession implements IHTTPSession {
-        public static final int BUFSIZE = 8192;
+        public static final int BUFSIZE = RequestParser.BUFSIZE;
+        /**
+         * Size of the buffer in which responses to pipelined requests are collected.
+         */
+        public static final int PIPELINE_BUFSIZE = 16 * 1024;
         private final TempFileManager tempFileManager;
         private final OutputStream outputStream;
-        private PushbackInputStream inputStream;
+        private PipelinedInputStream inputStream;
+        /**
+         * Channel of the client socket if it has one, so that responses can be sent with transferTo().
+         */
+        private WritableByteChannel socketChannel;
+        /**
+         * Entry of the connection in the registry, marked busy while a request is being served.
+         */
+        private ConnectionRegistry.Connection connection;
+        private final RequestParser requestParser = new RequestParser();
         private int splitbyte;
         private int rlen;
         private String uri;
         private Method method;
         private Map<String, String> parms;
-        private Map<String, String> headers;
+        private Map<String, String> remoteHeaders;
         private CookieHandler cookies;
         private String queryParameterString;
+        /**
+         * Whether the engine can give the thread back while waiting for a {@link DeferredResponse}.
+         */
+        private boolean suspendable;
+        private volatile DeferredResponse pending;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
-            this.outputStream = outputStream;
+            this.outputStream = new PipelinedOutputStream(outputStream);
+            this.inputStream = new PipelinedInputStream(inputStream);
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
-            this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
-            this.outputStream = outputStream;
+            this(tempFileManager, inputStream, outputStream);
             String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
+            remoteHeaders = new HashMap<String, String>();
+
+            remoteHeaders.put("remote-addr", remoteIp);
+            remoteHeaders.put("http-client-ip", remoteIp);
+        }
+
+        public HTTPSession(TempFileManager tempFileManager, Socket socket) throws IOException {
+            this(tempFileManager, socket.getInputStream(), socket.getOutputStream(), socket.getInetAddress());
+            this.socketChannel = socket.getChannel();
+            this.connection = connections.get(socket);
+        }
 
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+        /**
+         * Gives back the buffers of the session, once its connection is closed.
+         */
+        void release() {
+            DeferredResponse deferred = pending;
+            if (deferred != null) {
+                deferred.cancel();
+            }
+            requestParser.release();
         }
 
         @Override
@@ -881,7 +2037,8 @@ public abstract class NanoHTTPD {
                 // The full header should fit in here.
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
+                // The buffer belongs to the connection and is reused by every request on it.
+                byte[] buf = requestParser.buffer();
                 splitbyte = 0;
                 rlen = 0;
                 {
@@ -899,6 +2056,12 @@ public abstract class NanoHTTPD {
                         safeClose(outputStream);
                         throw new SocketException("NanoHttpd Shutdown");
                     }
+                    if (connection != null && !connection.busy()) {
+                        // Closed by the reaper while the request was arriving
+                        safeClose(inputStream);
+                        safeClose(outputStream);
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
                     while (read > 0) {
                         rlen += read;
                         splitbyte = findHeaderEnd(buf, rlen);
@@ -912,36 +2075,39 @@ public abstract class NanoHTTPD {
                     inputStream.unread(buf, splitbyte, rlen - splitbyte);
                 }
 
-                parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
-                }
-
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
-
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
+                // Decode the request line and headers
+                requestParser.parse(splitbyte > 0 ? splitbyte : rlen, remoteHeaders);
 
-                method = Method.lookup(pre.get("method"));
+                method = requestParser.method();
                 if (method == null) {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
                 }
 
-                uri = pre.get("uri");
+                parms = new HashMap<String, String>();
+                queryParameterString = null;
+                String query = requestParser.queryString();
+                if (query != null) {
+                    decodeParms(query, parms);
+                }
+                uri = decodeUri(requestParser.rawUri());
 
-                cookies = new CookieHandler(headers);
+                cookies = null;
 
                 // Ok, now do the serve()
                 Response r = serve(this);
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
-                } else {
-                    cookies.unloadQueue(r);
-                    r.setRequestMethod(method);
-                    r.send(outputStream);
                 }
+                if (r instanceof DeferredResponse) {
+                    DeferredResponse deferred = (DeferredResponse) r;
+                    if (suspendable && !deferred.isDone()) {
+                        // The engine will call resume() once the response is ready
+                        pending = deferred;
+                        return;
+                    }
+                    r = deferred.await();
+                }
+                send(r);
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
@@ -956,10 +2122,165 @@ public abstract class NanoHTTPD {
                 r.send(outputStream);
                 safeClose(outputStream);
             } finally {
-                tempFileManager.clear();
+                if (pending == null) {
+                    requestDone();
+                }
+            }
+        }
+
+        /**
+         * @return whether the session is waiting for a {@link DeferredResponse}, and its connection
+         * must not be read from until resume() has been called.
+         */
+        boolean isSuspended() {
+            return pending != null;
+        }
+
+        /**
+         * @return whether the response the session is waiting for is ready.
+         */
+        boolean isPendingDone() {
+            DeferredResponse deferred = pending;
+            return deferred != null && deferred.isDone();
+        }
+
+        /**
+         * Sets what to run once the response the session is waiting for is ready.
+         */
+        void whenPendingDone(Runnable callback) {
+            pending.whenComplete(callback);
+        }
+
+        /**
+         * Sends the response that the suspended request has been waiting for. If it is not
+         * ready yet, the client has sent something in the meantime: if it has closed the
+         * connection, the response is cancelled; otherwise this waits for it.
+         */
+        void resume() throws IOException {
+            DeferredResponse deferred = pending;
+            try {
+                if (!deferred.isDone()) {
+                    int b;
+                    try {
+                        b = inputStream.read();
+                    } catch (IOException e) {
+                        deferred.cancel();
+                        throw e;
+                    }
+                    if (b == -1) {
+                        deferred.cancel();
+                        safeClose(inputStream);
+                        safeClose(outputStream);
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
+                    inputStream.unread(b);
+                }
+                send(deferred.await());
+            } finally {
+                pending = null;
+                requestDone();
+            }
+        }
+
+        private void send(Response r) throws IOException {
+            if (cookies != null) cookies.unloadQueue(r);
+            r.setRequestMethod(method);
+            // HTTP/1.0 clients cannot decode chunked transfer coding, which compressed bodies are sent in
+            boolean http10 = requestParser.isHttp10();
+            r.setChunkedAllowed(!http10);
+            if (compressionThreshold >= 0 && !http10) {
+                r.setCompression(Compression.negotiate(requestParser.header("accept-encoding")), compressionThreshold);
+            }
+            // While responses are being held back, writing around the buffer would reorder them
+            r.send(outputStream, inputStream.hasPipelined() ? null : socketChannel);
+            if (r.isCloseDelimited()) {
+                ((PipelinedOutputStream) outputStream).flushHeldBack();
+                safeClose(outputStream);
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+        }
+
+        private void requestDone() {
+            tempFileManager.clear();
+            if (connection != null) {
+                connection.idle();
+            }
+        }
+
+        /**
+         * Input side of the session. Bytes that were read past the end of a request are pushed back
+         * here, and may hold further requests that the client sent without waiting ("pipelining").
+         * Those are returned without blocking; before blocking on the socket, responses that are
+         * still held back in the {@link PipelinedOutputStream} are sent.
+         */
+        private class PipelinedInputStream extends PushbackInputStream {
+            PipelinedInputStream(InputStream in) {
+                super(in, BUFSIZE);
+            }
+
+            /**
+             * @return whether bytes of another request have already been received.
+             */
+            boolean hasPipelined() {
+                return buf != null && pos < buf.length;  // buf is null once closed
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!hasPipelined()) {
+                    ((PipelinedOutputStream) outputStream).flushHeldBack();
+                }
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int buffered = buf.length - pos;
+                if (buffered > 0) {
+                    // Do not block for more than what is already here
+                    int n = Math.min(buffered, len);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                ((PipelinedOutputStream) outputStream).flushHeldBack();
+                return in.read(b, off, len);
+            }
+        }
+
+        /**
+         * Output side of the session. Responses are buffered, and flush() is held back while the
+         * next request is already waiting in the input, so that the responses to a batch of
+         * pipelined requests go out in as few writes as possible, and in order.
+         */
+        private class PipelinedOutputStream extends BufferedOutputStream {
+            PipelinedOutputStream(OutputStream out) {
+                super(out, PIPELINE_BUFSIZE);
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                if (!inputStream.hasPipelined()) {
+                    super.flush();
+                }
+            }
+
+            void flushHeldBack() throws IOException {
+                if (count > 0) {
+                    super.flush();
+                }
             }
         }
 
+        /**
+         * Percent-decodes the request path, skipping the decoder when there is nothing to decode.
+         */
+        private String decodeUri(String rawUri) {
+            return rawUri.indexOf('%') < 0 && rawUri.indexOf('+') < 0 ? rawUri : decodePercent(rawUri);
+        }
 
         /*******
 
@@ -973,8 +2294,9 @@ public abstract class NanoHTTPD {
                 randomAccessFile = getTmpBucket();
 
                 long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
+                String contentLength = requestParser.header("content-length");
+                if (contentLength != null) {
+                    size = Integer.parseInt(contentLength);
                 } else if (splitbyte < rlen) {
                     size = rlen - splitbyte;
                 } else {
@@ -1003,7 +2325,7 @@ public abstract class NanoHTTPD {
                 // in data section, too, read it:
                 if (Method.POST.equals(method)) {
                     String contentType = "";
-                    String contentTypeHeader = headers.get("content-type");
+                    String contentTypeHeader = requestParser.header("content-type");
 
                     StringTokenizer st = null;
                     if (contentTypeHeader != null) {
@@ -1060,6 +2382,7 @@ public abstract class NanoHTTPD {
 
         private String getBoundaryString(String contentTypeHeader)
         {
+            if (contentTypeHeader == null) return null;
             String prefix = "boundary=";
             int index = contentTypeHeader.indexOf(prefix);
             if (index == -1) return null;
@@ -1073,11 +2396,10 @@ public abstract class NanoHTTPD {
 
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
-            RandomAccessFile randomAccessFile = null;
             BufferedReader in = null;
             try {
                 String contentType = "";
-                String contentTypeHeader = headers.get("content-type");
+                String contentTypeHeader = requestParser.header("content-type");
 
                 StringTokenizer st = null;
                 if (contentTypeHeader != null) {
@@ -1088,11 +2410,16 @@ public abstract class NanoHTTPD {
                 }
                 String boundary = getBoundaryString(contentTypeHeader);
 
-                randomAccessFile = getTmpBucket();
-
                 long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
+                InputStream bodyStream = inputStream;
+                String contentLength = requestParser.header("content-length");
+                String transferEncoding = requestParser.header("transfer-encoding");
+                if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                    // Read until the decoder reports the last chunk
+                    bodyStream = new ChunkedInputStream(inputStream);
+                    size = Long.MAX_VALUE;
+                } else if (contentLength != null) {
+                    size = Integer.parseInt(contentLength);
                 } else if (splitbyte < rlen) {
                     size = rlen - splitbyte;
                 } else {
@@ -1102,7 +2429,7 @@ public abstract class NanoHTTPD {
                 if (boundary != null) {
                     try {
                         List<SplitBoundary.FilePart> parts =
-                                SplitBoundary.readAndSplitByBoundary(inputStream, size, boundary, tempFileManager);
+                                SplitBoundary.readAndSplitByBoundary(bodyStream, size, boundary, tempFileManager);
                         SplitBoundary.decodeMultipartData(parts, parms, files);
                         return;
                     }
@@ -1110,28 +2437,33 @@ public abstract class NanoHTTPD {
                     catch (Exception e) { throw new IOException(e.getMessage()); }
                 }
 
-                // Now read all the body and write it to f
-                byte[] buf = new byte[512];
-                //OutputStream keep = new FileOutputStream("/tmp/out");
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, (int)Math.min(size, 512));
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
-                        //keep.write(buf, 0, rlen);
-                        //System.out.print(new String(buf, 0, rlen));
+                // Now read all the body and write it to f; small bodies stay in memory
+                TempFile bodyFile = getTmpBucket();
+                OutputStream body;
+                try {
+                    body = bodyFile.open();
+                } catch (Exception e) {
+                    throw new Error(e); // we won't recover, so throw an error
+                }
+                byte[] buf = BufferPool.shared().acquire(4096);
+                try {
+                    while (size > 0) {
+                        rlen = bodyStream.read(buf, 0, (int)Math.min(size, buf.length));
+                        if (rlen < 0) {
+                            break;
+                        }
+                        size -= rlen;
+                        body.write(buf, 0, rlen);
                     }
+                } finally {
+                    BufferPool.shared().release(buf);
                 }
-                //keep.close();
-                //System.out.println();
-                //System.out.println(headers.get("content-type"));
 
                 // Get the raw body as a byte []
-                ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
+                ByteBuffer fbuf = getTmpBuffer(bodyFile);
 
                 // Create a BufferedReader for easily reading it as string.
-                InputStream bin = new FileInputStream(randomAccessFile.getFD());
+                InputStream bin = getTmpInputStream(bodyFile);
                 in = new BufferedReader(new InputStreamReader(bin));
 
                 // If the method is POST, there may be parameters
@@ -1139,24 +2471,14 @@ public abstract class NanoHTTPD {
                 if (Method.POST.equals(method)) {
                     if ("multipart/form-data".equalsIgnoreCase(contentType)) {
                         // Handle multipart/form-data
-                        if (boundary == null) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing.");
-                        }
-
-                        //String boundaryStartString = "boundary=";
-                        //int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
-                        //String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
-                        //if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                        //    boundary = boundary.substring(1, boundary.length() - 1);
-                        //}
-
-                        decodeMultipartData(boundary, fbuf, in, parms, files);
+                        // A body with a boundary has been split by SplitBoundary above
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing.");
                     } else {
                         String postLine = "";
                         StringBuilder postLineBuffer = new StringBuilder();
                         char pbuf[] = new char[512];
                         int read = in.read(pbuf);
-                        while (read >= 0 && !postLine.endsWith("\r\n")) {
+                        while (read >= 0) {
                             postLine = String.valueOf(pbuf, 0, read);
                             postLineBuffer.append(postLine);
                             read = in.read(pbuf);
@@ -1171,10 +2493,9 @@ public abstract class NanoHTTPD {
                         }
                     }
                 } else if (Method.PUT.equals(method)) {
-                    files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
+                    files.put("content", fbuf.limit() > 0 ? bodyFile.getName() : "");
                 }
             } finally {
-                safeClose(randomAccessFile);
                 safeClose(in);
             }
         }
@@ -1185,137 +2506,6 @@ public abstract class NanoHTTPD {
             parseBody(files);
         }
 
-        /**
-         * Decodes the sent headers and loads the data into Key/value pairs
-         */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-                throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
-
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
-
-                pre.put("method", st.nextToken());
-
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
-
-                String uri = st.nextToken();
-
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
-
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
-                    }
-                }
-
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
-            }
-        }
-
-        /**
-         * Decodes the Multipart Body data and put it into Key/Value pairs.
-         */
-        private void decodeMultipartData(String boundary, ByteBuffer fbuf, BufferedReader in, Map<String, String> parms,
-                                         Map<String, String> files) throws ResponseException {
-            //Log.d("Nano", "decodeMultipartData");
-            try {
-                int[] bpositions = getBoundaryPositions(fbuf, boundary.getBytes());
-                int boundarycount = 1;
-                String mpline = in.readLine();
-                while (mpline != null) {
-                    if (!mpline.contains(boundary)) {
-                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but next chunk does not start with boundary. Usage: GET /example/file.html");
-                    }
-                    boundarycount++;
-                    Map<String, String> item = new HashMap<String, String>();
-                    mpline = in.readLine();
-                    while (mpline != null && mpline.trim().length() > 0) {
-                        int p = mpline.indexOf(':');
-                        if (p != -1) {
-                            item.put(mpline.substring(0, p).trim().toLowerCase(Locale.US), mpline.substring(p + 1).trim());
-                        }
-                        mpline = in.readLine();
-                    }
-                    if (mpline != null) {
-                        String contentDisposition = item.get("content-disposition");
-                        if (contentDisposition == null) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but no content-disposition info found. Usage: GET /example/file.html");
-                        }
-                        StringTokenizer st = new StringTokenizer(contentDisposition, ";");
-                        Map<String, String> disposition = new HashMap<String, String>();
-                        while (st.hasMoreTokens()) {
-                            String token = st.nextToken().trim();
-                            int p = token.indexOf('=');
-                            if (p != -1) {
-                                disposition.put(token.substring(0, p).trim().toLowerCase(Locale.US), token.substring(p + 1).trim());
-                            }
-                        }
-                        String pname = disposition.get("name");
-                        pname = pname.substring(1, pname.length() - 1);
-
-                        String value = "";
-                        if (item.get("content-type") == null) {
-                            while (mpline != null && !mpline.contains(boundary)) {
-                                mpline = in.readLine();
-                                if (mpline != null) {
-                                    int d = mpline.indexOf(boundary);
-                                    if (d == -1) {
-                                        value += mpline;
-                                    } else {
-                                        value += mpline.substring(0, d - 2);
-                                    }
-                                }
-                            }
-                        } else {
-                            if (boundarycount > bpositions.length) {
-                                throw new ResponseException(Response.Status.INTERNAL_ERROR, "Error processing request");
-                            }
-                            int offset = stripMultipartHeaders(fbuf, bpositions[boundarycount - 2]);
-                            String path = saveTmpFile(fbuf, offset, bpositions[boundarycount - 1] - offset - 4);
-                            multiput(files, pname, path);
-                            value = disposition.get("filename");
-                            value = value.substring(1, value.length() - 1);
-                            do {
-                                mpline = in.readLine();
-                            } while (mpline != null && !mpline.contains(boundary));
-                            //Log.d("Nano", "  decodeMultipartData: boundary");
-                        }
-                        multiput(parms, pname, value);
-                    }
-                }
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
-            }
-            //Log.d("Nano", "/decodeMultipartData");
-        }
-
         /**
          * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
          */
@@ -1330,94 +2520,34 @@ public abstract class NanoHTTPD {
             return 0;
         }
 
-        /**
-         * Find the byte positions where multipart boundaries start.
-         */
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            //Log.d("Nano", "getBoundaryPositions");
-            List<Integer> matchbytes = new ArrayList<Integer>();
-            int BLOCK_SIZE = 4 * 1024;
-            int extra = boundary.length - 1;
-            byte[] buffer = new byte[BLOCK_SIZE + extra];
-            b.position(0);
-            while (b.remaining() > 0) {
-                int offset = b.position();
-                int c = Math.min(b.remaining(), buffer.length);
-                b.get(buffer, 0, c);
-                if (b.remaining() > 0) b.position(b.position() - extra);
-                int matchcount = 0;
-                int matchbyte = -1;
-                for (int i = 0; i < buffer.length; i++) {
-                    if (buffer[i] == boundary[matchcount]) {
-                        if (matchcount == 0)
-                            matchbyte = i;
-                        matchcount++;
-                        if (matchcount == boundary.length) {
-                            matchbytes.add(matchbyte + offset);
-                            matchcount = 0;
-                            matchbyte = -1;
-                        }
-                    } else {
-                        i -= matchcount;
-                        matchcount = 0;
-                        matchbyte = -1;
-                    }
-                }
-            }
-            int[] ret = new int[matchbytes.size()];
-            for (int i = 0; i < ret.length; i++) {
-                ret[i] = matchbytes.get(i);
+        private TempFile getTmpBucket() {
+            try {
+                return tempFileManager.createTempFile();
+            } catch (Exception e) {
+                throw new Error(e); // we won't recover, so throw an error
             }
-            //Log.d("Nano", "/getBoundaryPositions");
-            return ret;
         }
 
         /**
-         * Retrieves the content of a sent file and saves it to a temporary file. The full path to the saved file is returned.
+         * @return the contents of a temp file, without going to disk if they are held in memory.
          */
-        private String saveTmpFile(ByteBuffer b, int offset, int len) {
-            String path = "";
-            //Log.d("Nano", "saveTmpFile");
-            if (len > 0) {
-                FileOutputStream fileOutputStream = null;
-                try {
-                    TempFile tempFile = tempFileManager.createTempFile();
-                    ByteBuffer src = b.duplicate();
-                    fileOutputStream = new FileOutputStream(tempFile.getName());
-                    FileChannel dest = fileOutputStream.getChannel();
-                    src.position(offset).limit(offset + len);
-                    dest.write(src.slice());
-                    path = tempFile.getName();
-                } catch (Exception e) { // Catch exception if any
-                    throw new Error(e); // we won't recover, so throw an error
-                } finally {
-                    safeClose(fileOutputStream);
-                }
+        private ByteBuffer getTmpBuffer(TempFile tempFile) throws IOException {
+            if (tempFile instanceof HybridTempFile) {
+                return ((HybridTempFile) tempFile).getBuffer();
             }
-            //Log.d("Nano", "/saveTmpFile");
-            return path;
-        }
-
-        private RandomAccessFile getTmpBucket() {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile.getName(), "r");
             try {
-                TempFile tempFile = tempFileManager.createTempFile();
-                return new RandomAccessFile(tempFile.getName(), "rw");
-            } catch (Exception e) {
-                throw new Error(e); // we won't recover, so throw an error
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            } finally {
+                safeClose(randomAccessFile);
             }
         }
 
-        /**
-         * It returns the offset separating multipart file headers from the file's data.
-         */
-        private int stripMultipartHeaders(ByteBuffer b, int offset) {
-            int i;
-            for (i = offset; i < b.limit(); i++) {
-                if (b.get(i) == '\r' && b.get(++i) == '\n' && b.get(++i) == '\r' && b.get(++i) == '\n') {
-                    break;
-                }
+        private InputStream getTmpInputStream(TempFile tempFile) throws IOException {
+            if (tempFile instanceof HybridTempFile) {
+                return ((HybridTempFile) tempFile).getInputStream();
             }
-            return i + 1;
+            return new FileInputStream(tempFile.getName());
         }
 
         /**
@@ -1461,7 +2591,7 @@ public abstract class NanoHTTPD {
 
         @Override
         public final Map<String, String> getHeaders() {
-            return headers;
+            return requestParser.headers();
         }
 
         @Override
@@ -1481,6 +2611,9 @@ public abstract class NanoHTTPD {
 
         @Override
         public CookieHandler getCookies() {
+            if (cookies == null) {
+                cookies = new CookieHandler(requestParser.header("cookie"));
+            }
             return cookies;
         }
     }
@@ -1530,7 +2663,13 @@ public abstract class NanoHTTPD {
         private ArrayList<Cookie> queue = new ArrayList<Cookie>();
 
         public CookieHandler(Map<String, String> httpHeaders) {
-            String raw = httpHeaders.get("cookie");
+            this(httpHeaders.get("cookie"));
+        }
+
+        /**
+         * @param raw value of the "cookie" request header, or null.
+         */
+        public CookieHandler(String raw) {
             if (raw != null) {
                 String[] tokens = raw.split(";");
                 for (String token : tokens) {
@@ -0,0 +1,397 @@
+package nanohttpd;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import nanohttpd.NanoHTTPD.Method;
+import nanohttpd.NanoHTTPD.Response;
+import nanohttpd.NanoHTTPD.ResponseException;
+
+
+/**
+ * Parses the request line and the headers of an HTTP request straight from bytes.
+ * <p/>
+ * <p>One parser is kept per connection and its buffer is reused for every request on it.
+ * Common header names are matched against pre-encoded, lowercase constants, so no
+ * String is built for them; header values only become Strings when they are asked for,
+ * and the {@link Map} view of the headers is only filled in when it is iterated or modified.</p>
+ */
+class RequestParser {
+    static final int BUFSIZE = 8192;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String[] COMMON_HEADERS = {
+            "host", "connection", "content-length", "content-type", "transfer-encoding",
+            "accept", "accept-encoding", "accept-language", "accept-charset", "user-agent",
+            "cookie", "referer", "origin", "range", "expect", "if-none-match", "if-modified-since",
+            "cache-control", "pragma", "authorization", "upgrade-insecure-requests", "dnt"
+    };
+    /**
+     * COMMON_HEADERS bucketed by length, since the length of a name is known before its bytes are compared.
+     */
+    private static final String[][] COMMON_BY_LENGTH = new String[32][];
+
+    static {
+        for (String name : COMMON_HEADERS) {
+            String[] bucket = COMMON_BY_LENGTH[name.length()];
+            String[] grown = new String[bucket == null ? 1 : bucket.length + 1];
+            if (bucket != null) System.arraycopy(bucket, 0, grown, 0, bucket.length);
+            grown[grown.length - 1] = name;
+            COMMON_BY_LENGTH[name.length()] = grown;
+        }
+    }
+
+    private static final Method[] METHODS = Method.values();
+
+    private static final String HTTP_10 = "HTTP/1.0";
+
+    private byte[] buf;
+
+    private Method method;
+    private String uri;
+    private String queryString;
+    private boolean http10;
+
+    private int count;
+    private String[] names = new String[16];
+    private int[] valueStart = new int[16];
+    private int[] valueEnd = new int[16];
+    private String[] values = new String[16];
+    private char[] scratch = new char[64];
+
+    private Headers headers;
+
+    /**
+     * Hands out the buffer to read the next request into. From now on the headers of the previous
+     * request are only available if they have been asked for through {@link #headers()}.
+     */
+    byte[] buffer() {
+        if (headers != null) {
+            headers.detach();
+            headers = null;
+        }
+        if (buf == null) {
+            buf = BufferPool.shared().acquire(BUFSIZE);
+        }
+        return buf;
+    }
+
+    /**
+     * Returns the buffer to the pool, once the connection is done with.
+     */
+    void release() {
+        if (headers != null) {
+            headers.detach();
+        }
+        if (buf != null) {
+            BufferPool.shared().release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Parses <code>buffer()[0..end)</code>, which holds a request line and headers (up to and including
+     * the blank line that ends them).
+     *
+     * @param extra entries to add to the headers, such as "remote-addr"; request headers take precedence.
+     */
+    void parse(int end, Map<String, String> extra) throws ResponseException {
+        headers = new Headers(extra);
+        count = 0;
+        method = null;
+        uri = null;
+        queryString = null;
+        http10 = true;
+
+        int pos = skipBlanks(0, end);
+        int lineEnd = lineEnd(pos, end);
+        if (pos >= lineEnd) {
+            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+        }
+
+        // Request line: METHOD SP URI [SP VERSION]
+        int methodEnd = tokenEnd(pos, lineEnd);
+        method = lookupMethod(pos, methodEnd);
+        pos = skipBlanks(methodEnd, lineEnd);
+        if (pos >= lineEnd) {
+            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+        }
+        int uriEnd = tokenEnd(pos, lineEnd);
+        int qmi = indexOf('?', pos, uriEnd);
+        if (qmi >= 0) {
+            uri = new String(buf, pos, qmi - pos, UTF8);
+            queryString = new String(buf, qmi + 1, uriEnd - qmi - 1, UTF8);
+        } else {
+            uri = new String(buf, pos, uriEnd - pos, UTF8);
+        }
+
+        // If there's another token, it's protocol version,
+        // followed by HTTP headers.
+        pos = skipBlanks(uriEnd, lineEnd);
+        if (pos >= lineEnd) {
+            return;
+        }
+        http10 = tokenEnd(pos, lineEnd) - pos == HTTP_10.length() && equalsIgnoreCase(HTTP_10, pos);
+        pos = nextLine(lineEnd, end);
+        while (pos < end) {
+            lineEnd = lineEnd(pos, end);
+            if (skipBlanks(pos, lineEnd) >= lineEnd) {
+                break;
+            }
+            int colon = indexOf(':', pos, lineEnd);
+            if (colon >= 0) {
+                int nameEnd = trimEnd(pos, colon);
+                int nameStart = skipBlanks(pos, nameEnd);
+                int vs = skipBlanks(colon + 1, lineEnd);
+                addHeader(headerName(nameStart, nameEnd), vs, trimEnd(vs, lineEnd));
+            }
+            pos = nextLine(lineEnd, end);
+        }
+    }
+
+    Method method() {
+        return method;
+    }
+
+    /**
+     * @return whether the request is HTTP/1.0 (or the version-less HTTP/0.9), whose clients
+     * cannot decode chunked transfer coding.
+     */
+    boolean isHttp10() {
+        return http10;
+    }
+
+    /**
+     * @return the path part of the request URI, still percent-encoded.
+     */
+    String rawUri() {
+        return uri;
+    }
+
+    /**
+     * @return the part of the request URI after '?', or null when there is none.
+     */
+    String queryString() {
+        return queryString;
+    }
+
+    /**
+     * Looks up a header of the current request, without materializing the header map.
+     *
+     * @param name lowercase header name
+     */
+    String header(String name) {
+        return headers != null ? headers.get(name) : null;
+    }
+
+    /**
+     * @return the headers of the current request, as a Map; it stays valid after the next request is parsed.
+     */
+    Map<String, String> headers() {
+        if (headers == null) {
+            headers = new Headers(null);
+        }
+        headers.exposed = true;
+        return headers;
+    }
+
+    private void addHeader(String name, int start, int end) {
+        if (count == names.length) {
+            int n = count * 2;
+            String[] newNames = new String[n];
+            String[] newValues = new String[n];
+            int[] newStart = new int[n];
+            int[] newEnd = new int[n];
+            System.arraycopy(names, 0, newNames, 0, count);
+            System.arraycopy(values, 0, newValues, 0, count);
+            System.arraycopy(valueStart, 0, newStart, 0, count);
+            System.arraycopy(valueEnd, 0, newEnd, 0, count);
+            names = newNames;
+            values = newValues;
+            valueStart = newStart;
+            valueEnd = newEnd;
+        }
+        names[count] = name;
+        values[count] = null;
+        valueStart[count] = start;
+        valueEnd[count] = end;
+        count++;
+    }
+
+    private String value(int i) {
+        String v = values[i];
+        if (v == null) {
+            v = values[i] = new String(buf, valueStart[i], valueEnd[i] - valueStart[i], UTF8);
+        }
+        return v;
+    }
+
+    /**
+     * @return the lowercase name of the header in buf[start..end); a shared constant for common headers.
+     */
+    private String headerName(int start, int end) {
+        int len = end - start;
+        String[] bucket = len < COMMON_BY_LENGTH.length ? COMMON_BY_LENGTH[len] : null;
+        if (bucket != null) {
+            for (String name : bucket) {
+                if (equalsLowercase(name, start)) {
+                    return name;
+                }
+            }
+        }
+        if (scratch.length < len) {
+            scratch = new char[len];
+        }
+        for (int i = 0; i < len; i++) {
+            scratch[i] = (char) toLower(buf[start + i] & 0xff);
+        }
+        return new String(scratch, 0, len);
+    }
+
+    private boolean equalsLowercase(String lower, int start) {
+        for (int i = 0; i < lower.length(); i++) {
+            if (toLower(buf[start + i] & 0xff) != lower.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Method lookupMethod(int start, int end) {
+        for (Method m : METHODS) {
+            String name = m.name();
+            if (name.length() == end - start && equalsIgnoreCase(name, start)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private boolean equalsIgnoreCase(String upper, int start) {
+        for (int i = 0; i < upper.length(); i++) {
+            int c = buf[start + i] & 0xff;
+            if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+            if (c != upper.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private int skipBlanks(int pos, int end) {
+        while (pos < end && isBlank(buf[pos])) pos++;
+        return pos;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isBlank(buf[end - 1])) end--;
+        return end;
+    }
+
+    private int tokenEnd(int pos, int end) {
+        while (pos < end && !isBlank(buf[pos])) pos++;
+        return pos;
+    }
+
+    private int indexOf(char c, int pos, int end) {
+        for (; pos < end; pos++) {
+            if (buf[pos] == c) return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the end of the line starting at pos, excluding the "\r\n" or "\n" that terminates it.
+     */
+    private int lineEnd(int pos, int end) {
+        while (pos < end && buf[pos] != '\r' && buf[pos] != '\n') pos++;
+        return pos;
+    }
+
+    private int nextLine(int lineEnd, int end) {
+        if (lineEnd < end && buf[lineEnd] == '\r') lineEnd++;
+        if (lineEnd < end && buf[lineEnd] == '\n') lineEnd++;
+        return lineEnd;
+    }
+
+    /**
+     * Map view of the headers of one request. Lookups are served from the parser's tables;
+     * anything else copies the headers into a HashMap first.
+     */
+    private class Headers extends AbstractMap<String, String> {
+        private final Map<String, String> extra;
+        private Map<String, String> materialized;
+        boolean exposed;
+
+        Headers(Map<String, String> extra) {
+            this.extra = extra;
+        }
+
+        /**
+         * Called before the parser's buffer is reused; keeps the contents if anyone may still look at them.
+         */
+        void detach() {
+            if (exposed) {
+                materialize();
+            }
+        }
+
+        private Map<String, String> materialize() {
+            if (materialized == null) {
+                Map<String, String> m = new HashMap<String, String>();
+                if (extra != null) m.putAll(extra);
+                for (int i = 0; i < count; i++) {
+                    m.put(names[i], value(i));
+                }
+                materialized = m;
+            }
+            return materialized;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (materialized != null) {
+                return materialized.get(key);
+            }
+            // Scan backwards, so that a repeated header keeps its last value
+            for (int i = count - 1; i >= 0; i--) {
+                if (names[i].equals(key)) {
+                    return value(i);
+                }
+            }
+            return extra != null ? extra.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return materialize().put(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return materialize().remove(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return materialize().entrySet();
+        }
+    }
+}
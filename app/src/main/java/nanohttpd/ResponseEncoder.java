@@ -0,0 +1,235 @@
+package nanohttpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nanohttpd.NanoHTTPD.Response;
+
+
+/**
+ * Encodes the status line and headers of a response into a reusable, per-thread byte buffer.
+ * <p/>
+ * <p>Status lines, the "Connection" header and "Content-Type" lines are encoded once and
+ * cached; the "Date" value is formatted at most once per second. A small body can be appended
+ * to the same buffer, so that the whole response goes out in a single write.</p>
+ */
+final class ResponseEncoder {
+    /**
+     * Bodies up to this size are copied after the headers and written together with them.
+     */
+    static final int COALESCE_LIMIT = 16 * 1024;
+    /**
+     * Buffers that grew larger than this are not kept for the next response.
+     */
+    private static final int RETAIN_LIMIT = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] COLON_SP = ascii(": ");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] DATE = ascii("Date: ");
+
+    private static final Map<Response.IStatus, byte[]> STATUS_LINES = new ConcurrentHashMap<Response.IStatus, byte[]>();
+    private static final Map<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<String, byte[]>();
+    private static final int CONTENT_TYPE_CACHE_SIZE = 64;
+
+    static {
+        for (Response.Status status : Response.Status.values()) {
+            statusLine(status);
+        }
+    }
+
+    private static final ThreadLocal<ResponseEncoder> ENCODERS = new ThreadLocal<ResponseEncoder>() {
+        @Override
+        protected ResponseEncoder initialValue() {
+            return new ResponseEncoder();
+        }
+    };
+
+    private static volatile CachedDate cachedDate;
+
+    private byte[] buf = new byte[1024];
+    private int len;
+
+    private ResponseEncoder() {
+    }
+
+    /**
+     * @return this thread's encoder, emptied and holding the status line.
+     */
+    static ResponseEncoder begin(Response.IStatus status) {
+        ResponseEncoder encoder = ENCODERS.get();
+        if (encoder.buf.length > RETAIN_LIMIT) {
+            encoder.buf = new byte[1024];
+        }
+        encoder.len = 0;
+        encoder.append(statusLine(status));
+        return encoder;
+    }
+
+    private static byte[] statusLine(Response.IStatus status) {
+        byte[] line = STATUS_LINES.get(status);
+        if (line == null) {
+            line = encode("HTTP/1.1 " + status.getDescription() + " \r\n");
+            if (status instanceof Response.Status) {
+                STATUS_LINES.put(status, line);
+            }
+        }
+        return line;
+    }
+
+    void contentType(String mimeType) {
+        byte[] line = CONTENT_TYPE_LINES.get(mimeType);
+        if (line == null) {
+            line = encode("Content-Type: " + mimeType + "\r\n");
+            if (CONTENT_TYPE_LINES.size() < CONTENT_TYPE_CACHE_SIZE) {
+                CONTENT_TYPE_LINES.put(mimeType, line);
+            }
+        }
+        append(line);
+    }
+
+    void date() {
+        append(DATE);
+        append(currentDate());
+        append(CRLF);
+    }
+
+    void connectionKeepAlive() {
+        append(CONNECTION_KEEP_ALIVE);
+    }
+
+    void transferEncodingChunked() {
+        append(TRANSFER_ENCODING_CHUNKED);
+    }
+
+    void contentLength(long length) {
+        append(CONTENT_LENGTH);
+        appendDecimal(length);
+        append(CRLF);
+    }
+
+    void header(String name, String value) {
+        appendString(name);
+        append(COLON_SP);
+        appendString(value);
+        append(CRLF);
+    }
+
+    void endHeaders() {
+        append(CRLF);
+    }
+
+    /**
+     * Copies up to <code>max</code> bytes of the body right after the headers.
+     *
+     * @return the number of bytes copied.
+     */
+    int appendBody(InputStream data, int max) throws IOException {
+        ensure(max);
+        int copied = 0;
+        while (copied < max) {
+            int read = data.read(buf, len, max - copied);
+            if (read <= 0) {
+                break;
+            }
+            len += read;
+            copied += read;
+        }
+        return copied;
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buf, 0, len);
+        len = 0;
+    }
+
+    private void append(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    private void appendString(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Not plain ASCII after all; take the slow path for the rest.
+                append(s.substring(i).getBytes(UTF8));
+                return;
+            }
+            buf[len++] = (byte) c;
+        }
+    }
+
+    private void appendDecimal(long n) {
+        if (n < 0) {
+            ensure(1);
+            buf[len++] = '-';
+            n = -n;
+        }
+        int digits = 1;
+        for (long m = n; m >= 10; m /= 10) digits++;
+        ensure(digits);
+        for (int i = len + digits - 1; i >= len; i--) {
+            buf[i] = (byte) ('0' + (n % 10));
+            n /= 10;
+        }
+        len += digits;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            byte[] grown = new byte[Math.max(buf.length * 2, len + extra)];
+            System.arraycopy(buf, 0, grown, 0, len);
+            buf = grown;
+        }
+    }
+
+    /**
+     * @return the current time as an HTTP date, reformatted at most once per second.
+     */
+    static byte[] currentDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate d = cachedDate;
+        if (d == null || d.second != second) {
+            d = new CachedDate(second);
+            cachedDate = d;
+        }
+        return d.bytes;
+    }
+
+    private static final class CachedDate {
+        final long second;
+        final byte[] bytes;
+
+        CachedDate(long second) {
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            this.second = second;
+            this.bytes = ascii(gmtFrmt.format(new Date(second * 1000)));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(ASCII);
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(UTF8);
+    }
+}
@@ -2,12 +2,11 @@ package nanohttpd;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -20,56 +19,95 @@ import nanohttpd.NanoHTTPD.ResponseException;
 
 
 
+/**
+ * Splits a multipart/form-data body into its parts, as it is read from the stream.
+ * <p/>
+ * <p>The delimiter ("\r\n--" followed by the boundary) is searched for with KMP, using a failure
+ * table computed once per request. Bytes that may be the beginning of a delimiter are held back;
+ * since they always equal a prefix of it, they need not be copied anywhere. Everything in between
+ * is written to the parts in whole slices.</p>
+ */
 public class SplitBoundary {
 
+	static final int BUFSIZE = 64 * 1024;
+
 	static class FilePart {
 		enum State { HEADER, BODY }
-		static final String HEADER_SEP = "\r\n\r\n";
+		static final byte[] HEADER_SEP = { '\r', '\n', '\r', '\n' };
+		/**
+		 * Part headers larger than this are refused, rather than buffered.
+		 */
+		static final int MAX_HEADER_SIZE = 64 * 1024;
 
 		State state = State.HEADER;
-		byte[] sep = HEADER_SEP.getBytes();
 		int sepi = 0;
 		
-		ByteBuffer header = ByteBuffer.allocate(1024);
+		byte[] header = new byte[256];
+		int headerLength = 0;
+		/**
+		 * Created once the part has a body to hold, so that the text after the closing delimiter
+		 * does not cost a temp file.
+		 */
 		NanoHTTPD.TempFile body;
 		
-		FileOutputStream fbody;
-		BufferedOutputStream bbody;
+		OutputStream bbody;
 		
-		public FilePart(NanoHTTPD.TempFile bodyTempFile) throws IOException {
-			body = bodyTempFile;
-			try {
-				fbody = (FileOutputStream)body.open();
-				bbody = new BufferedOutputStream(fbody);
-			}
-			catch (Exception e) { throw new IOException("cannot open temp file for write"); }
+		final NanoHTTPD.TempFileManager tfm;
+		
+		public FilePart(NanoHTTPD.TempFileManager tfm) {
+			this.tfm = tfm;
 		}
 		
 		String header() {
-			byte[] bytes = new byte[header.position()];
-			header.position(0);
-			header.get(bytes);
-			return new String(bytes);
+			return new String(header, 0, headerLength);
+		}
+		
+		void write(byte[] b, int off, int len) throws IOException {
+			if (state == State.HEADER) {
+				int end = off + len;
+				int i = off;
+				while (i < end && sepi < HEADER_SEP.length) {
+					byte c = b[i++];
+					if (c == HEADER_SEP[sepi]) sepi++;
+					else sepi = (c == HEADER_SEP[0]) ? 1 : 0;
+				}
+				appendHeader(b, off, i - off);
+				if (sepi < HEADER_SEP.length) return;
+				state = State.BODY;
+				open();
+				len = end - i;
+				off = i;
+			}
+			if (len > 0) bbody.write(b, off, len);
+		}
+		
+		private void appendHeader(byte[] b, int off, int len) throws IOException {
+			if (headerLength + len > header.length) {
+				if (headerLength + len > MAX_HEADER_SIZE)
+					throw new IOException("multipart header too large");
+				byte[] grown = new byte[Math.min(MAX_HEADER_SIZE, Math.max(header.length * 2, headerLength + len))];
+				System.arraycopy(header, 0, grown, 0, headerLength);
+				header = grown;
+			}
+			System.arraycopy(b, off, header, headerLength, len);
+			headerLength += len;
 		}
 		
-		void write(byte b) throws IOException {
-			switch (state) {
-			case HEADER: 
-				header.put(b);
-				if (b == sep[sepi]) sepi++;
-				else { sepi = 0; if (b == sep[sepi]) sepi++; }
-				if (sepi == sep.length) state = State.BODY;
-				break;
-			case BODY:
-				bbody.write(b);
+		private void open() throws IOException {
+			if (bbody != null) return;
+			try {
+				body = tfm.createTempFile();
+				bbody = new BufferedOutputStream(body.open());
 			}
+			catch (Exception e) { throw new IOException("cannot open temp file for write"); }
 		}
 		
-		void truncate(int nbytesBack) throws IOException {
-			bbody.flush();
-			FileChannel chan = fbody.getChannel();
-			chan.truncate(Math.max(0, chan.size() - nbytesBack));
-			fbody.close();
+		/**
+		 * Called when the delimiter that ends the part has been found.
+		 */
+		void finish() throws IOException {
+			open();
+			bbody.close();
 		}
 	}
 	
@@ -77,48 +115,94 @@ public class SplitBoundary {
     		NanoHTTPD.TempFileManager tfm)
     		throws Exception
     {
-    	byte[] bytes = boundary.getBytes();
-    	int index = 0;
-    	byte[] buf = new byte[8192];
+    	Splitter splitter = new Splitter(("\r\n--" + boundary).getBytes(), tfm);
+    	byte[] buf = BufferPool.shared().acquire((int) Math.min(BUFSIZE, Math.max(size, 1)));
     	int rlen;
     	
-    	List<FilePart> parts = new ArrayList<>();
-    	FilePart part = null;
-    	
-    	while (size > 0 && (rlen = in.read(buf)) > 0) {
-    		size -= rlen;
-    		for (int i = 0; i < rlen; ++i) {
-	    		//System.out.print(new String(buf));
-	    		if (part != null) part.write(buf[i]);
-	    		if (bytes[index] == buf[i]) {
-	    			index++;
-	    			if (index == bytes.length) {
-	    				System.out.println("*****");
-	    				if (part != null) {
-	    					part.truncate(index + 4  /* trim trailing "\r\n--" */);
-	    					parts.add(part);
-	    					//System.out.println(part.header());
-	    				}
-	    				if (!(i == rlen-1 && size == 0))
-	    					part = new FilePart(tfm.createTempFile());
-	    				index = 0;
-	    			}
-	    		}
-	    		else index = kmpBack(bytes, index, buf[i]);
+    	try {
+    		while (size > 0 && (rlen = in.read(buf, 0, (int) Math.min(size, buf.length))) > 0) {
+    			size -= rlen;
+    			splitter.feed(buf, rlen);
     		}
+    	} finally {
+    		BufferPool.shared().release(buf);
     	}
     	
-    	return parts;
+    	return splitter.parts;
     }
-    
-    private static int kmpBack(byte[] bytes, int index, byte next) {
+
+    /**
+     * Incremental state of {@link #readAndSplitByBoundary}.
+     */
+    static class Splitter {
+    	final byte[] delimiter;
+    	final int[] failure;
+    	final NanoHTTPD.TempFileManager tfm;
+    	final List<FilePart> parts = new ArrayList<FilePart>();
+    	FilePart part = null;
+    	/**
+    	 * Length of the delimiter prefix matched so far; these bytes have not been handed to a part yet.
+    	 */
+    	int matched;
+
+    	Splitter(byte[] delimiter, NanoHTTPD.TempFileManager tfm) {
+    		this.delimiter = delimiter;
+    		this.failure = failureTable(delimiter);
+    		this.tfm = tfm;
+    		// The first boundary is not preceded by a line break; pretend it was.
+    		this.matched = 2;
+    	}
+
+    	void feed(byte[] buf, int rlen) throws Exception {
+    		byte[] d = delimiter;
+    		int m = d.length;
+    		int held = matched;    // held back from before buf[start]
+    		int start = 0;
+    		int k = matched;
+    		for (int i = 0; i < rlen; i++) {
+    			byte b = buf[i];
+    			while (k > 0 && b != d[k]) k = failure[k];
+    			if (b == d[k] && ++k == m) {
+    				// Everything before the delimiter belongs to the current part
+    				emit(held, buf, start, held + (i + 1 - start) - m);
+    				if (part != null) {
+    					part.finish();
+    					parts.add(part);
+    				}
+    				part = new FilePart(tfm);
+    				held = 0;
+    				start = i + 1;
+    				k = 0;
+    			}
+    		}
+    		emit(held, buf, start, held + (rlen - start) - k);
+    		matched = k;
+    	}
+
+    	/**
+    	 * Hands <code>n</code> bytes to the current part: first of the <code>held</code> bytes, which
+    	 * are a prefix of the delimiter, then of buf starting at <code>start</code>.
+    	 */
+    	private void emit(int held, byte[] buf, int start, int n) throws IOException {
+    		if (part == null || n <= 0) return;
+    		int fromHeld = Math.min(n, held);
+    		if (fromHeld > 0) part.write(delimiter, 0, fromHeld);
+    		if (n > fromHeld) part.write(buf, start, n - fromHeld);
+    	}
+    }
+
+    /**
+     * @return for each j, the length of the longest proper prefix of pattern[0..j) that is also its suffix.
+     */
+    static int[] failureTable(byte[] pattern) {
+    	int[] failure = new int[pattern.length + 1];
     	int k = 0;
-    	for (int i = 1; i < index; i++) {
-    		if (bytes[i] == bytes[k]) k++;
-    		else k = kmpBack(bytes, k, bytes[i]);
+    	for (int j = 1; j < pattern.length; j++) {
+    		while (k > 0 && pattern[j] != pattern[k]) k = failure[k];
+    		if (pattern[j] == pattern[k]) k++;
+    		failure[j + 1] = k;
     	}
-    	if (next == bytes[k]) k++; else k = 0;
-    	return k;
+    	return failure;
     }
 
     /**
@@ -156,10 +240,7 @@ public class SplitBoundary {
 
                 String value = "";
                 if (item.get("content-type") == null) {
-                	FileInputStream f = new FileInputStream(part.body.getName());
-                	byte[] valuebuf = new byte[(int)f.getChannel().size()];
-                	value = new String(valuebuf, 0, f.read(valuebuf));
-                	f.close();
+                	value = readValue(part.body);
                 } else {
                     multiput(files, pname, part.body.getName());
                 	value = disposition.get("filename");
@@ -172,6 +253,24 @@ public class SplitBoundary {
         }
     }
     
+    /**
+     * Reads a form field back, straight from memory when the temp file has not been spilled to disk.
+     */
+    private static String readValue(NanoHTTPD.TempFile body) throws IOException {
+    	if (body instanceof NanoHTTPD.HybridTempFile && ((NanoHTTPD.HybridTempFile) body).isInMemory()) {
+    		ByteBuffer b = ((NanoHTTPD.HybridTempFile) body).getBuffer();
+    		return new String(b.array(), b.arrayOffset(), b.remaining());
+    	}
+    	FileInputStream f = new FileInputStream(body.getName());
+    	try {
+    		byte[] valuebuf = new byte[(int)f.getChannel().size()];
+    		int read = f.read(valuebuf);
+    		return read > 0 ? new String(valuebuf, 0, read) : "";
+    	} finally {
+    		f.close();
+    	}
+    }
+    
     protected static void multiput(Map<String, String> map, String key, String value) {
     	String existingValue = map.get(key);
     	if (existingValue != null) value = existingValue + NanoHTTPD.HTTPSession.MULTIPLE_VALUE_DELIM + value;
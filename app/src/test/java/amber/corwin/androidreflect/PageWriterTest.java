@@ -0,0 +1,80 @@
+package amber.corwin.androidreflect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PageWriter} encodes as String.getBytes(UTF_8) does, across buffer boundaries.
+ */
+public class PageWriterTest {
+
+    private static byte[] written(String... texts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PageWriter w = new PageWriter(out);
+        for (String text : texts) w.write(text);
+        w.flush();
+        return out.toByteArray();
+    }
+
+    private static void check(String text) throws IOException {
+        assertArrayEquals(text, text.getBytes(StandardCharsets.UTF_8), written(text));
+    }
+
+    @Test
+    public void encodesAsUtf8() throws IOException {
+        check("");
+        check("plain <ascii> & \"quotes\"\n");
+        check("caf\u00e9 \u00df \u07ff");  // two bytes
+        check("\u0800 \u20ac \uffff \u05e9\u05dc\u05d5\u05dd");  // three bytes
+        check("\ud83d\ude00 a\ud800\udc00z \udbff\udfff");  // surrogate pairs, four bytes
+    }
+
+    @Test
+    public void unpairedSurrogatesBecomeQuestionMarks() throws IOException {
+        check("a\ud800b");
+        check("a\udc00b");
+        check("\udc00\ud800");
+        check("end\ud83d");
+    }
+
+    @Test
+    public void crossesTheBuffer() throws IOException {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 5000; i++) b.append("x\u00e9\u20ac\ud83d\ude00");
+        check(b.toString());
+        // a pair at every offset against the end of the buffer
+        for (int pad = 8180; pad < 8192; pad++) {
+            char[] ascii = new char[pad];
+            Arrays.fill(ascii, 'a');
+            check(new String(ascii) + "\ud83d\ude00\u20ac");
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfBytesAndText() throws IOException {
+        byte[] big = new byte[20000];
+        Arrays.fill(big, (byte) 'b');
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PageWriter w = new PageWriter(out);
+        w.write("head ").write(big).write(" \u20ac").write("tail".getBytes(StandardCharsets.UTF_8));
+        w.flush();
+        String expected = "head " + new String(big, StandardCharsets.US_ASCII) + " \u20actail";
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    public void buffersUntilFlushed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PageWriter w = new PageWriter(out);
+        w.write("abc");
+        assertEquals(0, out.size());
+        w.flush();
+        assertEquals(3, out.size());
+    }
+}
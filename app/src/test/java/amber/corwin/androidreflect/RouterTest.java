@@ -0,0 +1,125 @@
+package amber.corwin.androidreflect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import nanohttpd.NanoHTTPD;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lookup order and path handling of {@link Router}.
+ */
+public class RouterTest {
+
+    private Router router;
+    /**
+     * The path the last handler was given.
+     */
+    private String seenPath;
+
+    private String route(String path, String query) {
+        NanoHTTPD.Response r = router.serve(path, query, null);
+        return r == null ? null : r.getHeader("X-Route");
+    }
+
+    @Before
+    public void setUp() {
+        Router api = new Router()
+                .exact("/eval", tagged("api-eval"))
+                .singleSegment(tagged("api-members"));
+        router = new Router()
+                .exact("/", tagged("root"))
+                .exact("/eval", tagged("eval"))
+                .verb("call", tagged("call"))
+                .verb("persist", "/[", tagged("persist"))
+                .verb("persist", "/[x", tagged("persist-x"))
+                .prefix("/$", tagged("lookup"))
+                .prefix("/js/", tagged("js"))
+                .singleSegment(tagged("members"))
+                .mount("api", api);
+    }
+
+    /**
+     * A handler whose response says which route it came from.
+     */
+    private Router.Handler tagged(final String name) {
+        return (path, query, session) -> {
+            seenPath = path;
+            NanoHTTPD.Response r = new NanoHTTPD.Response(name);
+            r.addHeader("X-Route", name);
+            return r;
+        };
+    }
+
+    @Test
+    public void exactPathComesFirst() {
+        assertEquals("root", route("/", null));
+        assertEquals("eval", route("/eval", "call"));
+    }
+
+    @Test
+    public void verbIsTheLeadingLettersOfTheQuery() {
+        assertEquals("call", route("/java.lang.String/valueOf", "call&int=1"));
+        assertEquals("call", route("/java.lang.String/valueOf", "call"));
+        assertEquals("members", route("/java.lang.String", "calls"));
+        assertEquals("members", route("/java.lang.String", "[1234]"));
+    }
+
+    @Test
+    public void mostSpecificVerbPrefixWins() {
+        assertEquals("persist", route("/[1234]", "persist"));
+        assertEquals("persist-x", route("/[x1]", "persist"));
+        assertNull(route("/a/b", "persist"));
+    }
+
+    @Test
+    public void prefixes() {
+        assertEquals("lookup", route("/$0", null));
+        assertEquals("js", route("/js/reflect.js", null));
+        assertEquals("members", route("/jsx", null));
+        assertNull(route("/jsx/a", null));
+    }
+
+    @Test
+    public void singleSegment() {
+        assertEquals("members", route("/java.lang.String", null));
+        assertEquals("members", route("/java.lang.String/", null));
+        assertNull(route("/java.lang.String/valueOf", null));
+    }
+
+    @Test
+    public void mountedRouterSeesThePathWithoutItsSegment() {
+        assertEquals("api-members", route("/api/java.lang.String", null));
+        assertEquals("/java.lang.String", seenPath);
+        assertEquals("api-eval", route("/api/eval", "1"));
+        assertEquals("/eval", seenPath);
+        // "/api" itself is a single segment of the outer router
+        assertEquals("members", route("/api", null));
+    }
+
+    @Test
+    public void routesCountTheirRequests() {
+        route("/", null);
+        route("/", null);
+        route("/api/eval", null);
+        int total = 0;
+        for (Router.Route r : router.getRoutes()) {
+            if (r.name.equals("/")) assertEquals(2, r.getRequestCount());
+            total += r.getRequestCount();
+        }
+        assertEquals(3, total);
+        assertEquals(10, router.getRoutes().size());
+    }
+
+    @Test
+    public void helpers() {
+        assertEquals("get", Router.verb("get[1]"));
+        assertNull(Router.verb("[1]"));
+        assertNull(Router.verb(""));
+        assertTrue(Router.isSingleSegment("/"));
+        assertTrue(Router.isSingleSegment("/a/"));
+        assertFalse(Router.isSingleSegment("/a/b"));
+        assertFalse(Router.isSingleSegment("a"));
+    }
+}
@@ -0,0 +1,90 @@
+package amber.corwin.androidreflect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import amber.corwin.androidreflect.reflect.ClassInfo;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Template}, and the member page rendered through it.
+ */
+public class TemplateTest {
+
+    private static String render(Template t, Object... args) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PageWriter w = new PageWriter(out);
+        t.render(w, args);
+        w.flush();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void fillsSlotsInOrder() throws IOException {
+        assertEquals("<a href=\"/x\">1</a>", render(Template.compile("<a href=\"{}\">{}</a>"), "/x", 1));
+        assertEquals("ab", render(Template.compile("{}{}"), "a", "b"));
+        assertEquals("no slots \u20ac", render(Template.compile("no slots \u20ac")));
+        assertEquals("[\u00e9]", render(Template.compile("[{}]"), "\u00e9"));
+    }
+
+    @Test
+    public void nullIsNothing() throws IOException {
+        assertEquals("<>", render(Template.compile("<{}>"), (Object) null));
+    }
+
+    @Test
+    public void partsWriteThemselves() throws IOException {
+        Template row = Template.compile("<li>{}</li>");
+        Template.Part rows = o -> {
+            for (int i = 0; i < 3; i++) row.render(o, i);
+        };
+        assertEquals("<ul><li>0</li><li>1</li><li>2</li></ul>", render(Template.compile("<ul>{}</ul>"), rows));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slotCountMustMatch() throws IOException {
+        render(Template.compile("{} {}"), "only one");
+    }
+
+    @Test
+    public void membersPageIsUnchanged() throws IOException {
+        for (Class<?> c : new Class<?>[] { String.class, Object.class, Thread.State.class, StringBuilder.class }) {
+            for (String thisRef : new String[] { null, "$0", "[00000000-0000-0000-0000-000000000000]" }) {
+                ClassInfo info = ClassInfo.of(c);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ReflectServer.writeMembersPage(new PageWriter(out), info, thisRef);
+                assertArrayEquals(c + "?" + thisRef,
+                        formattedMembersPage(info, thisRef).getBytes(StandardCharsets.UTF_8), out.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * The member page as it was built with String.format before it had templates.
+     */
+    private static String formattedMembersPage(ClassInfo info, String thisRef) {
+        String header = String.format("<input class=\"this-ref\" value=\"%s\"/>", thisRef == null ? "" : thisRef) +
+                (thisRef == null ? "" : String.format("<a href=\"/%s?persist\">persist</a>", thisRef));
+        StringBuilder payload = new StringBuilder();
+        for (ClassInfo.MethodInfo m : info.methods) {
+            StringBuilder inputs = new StringBuilder();
+            for (int i = 0; i < m.parameterTypes.length; i++) inputs.append("<input /> ");
+            String links =
+                    String.format("<a href=\"%s\" data-href=\"%s\">call</a>", m.callUrl(thisRef), m.callUrl) +
+                    (m.isStatic ? "" : String.format("<input class=\"this-arg\" value=\"%s\"/>", (thisRef == null ? "" : thisRef))) +
+                    inputs;
+            payload.append(String.format("<li>%s %s</li>\n", m.simpleSignature, links));
+        }
+        for (ClassInfo.FieldInfo f : info.fields) {
+            String links = f.isStatic ?
+                    String.format("<a href=\"%s\">get</a>", f.getUrl) : "";
+            payload.append(String.format("<li>%s %s</li>\n", f.simpleSignature, links));
+        }
+        return String.format("<html><body>%s</body></html>",
+                String.format("%s\n%s\n<ul>%s</ul>\n", ReflectServer.HEAD, header, payload.toString()));
+    }
+}
@@ -0,0 +1,158 @@
+package amber.corwin.androidreflect.reflect;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.UUID;
+
+import amber.corwin.androidreflect.reflect.ValueParser.ValueFormatError;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing, overload choice and evaluation of {@link Expression}.
+ */
+public class ExpressionTest {
+
+    private ObjectStore store;
+    private ValueParser parser;
+
+    @Before
+    public void setUp() {
+        store = new ObjectStore();
+        parser = new ValueParser(store);
+    }
+
+    private Object eval(String text) throws Exception {
+        return Expression.compile(text).evaluate(parser);
+    }
+
+    @Test
+    public void literals() throws Exception {
+        assertEquals(42, eval("42"));
+        assertEquals(-3, eval("-3"));
+        assertEquals(10L, eval("10L"));
+        assertEquals(2.5, eval("2.5"));
+        assertEquals("a\nb\"c", eval("\"a\\nb\\\"c\""));
+        assertNull(eval("null"));
+        assertEquals(true, eval("true"));
+        assertEquals(false, eval(" false "));
+    }
+
+    @Test
+    public void staticClassPrimaries() throws Exception {
+        assertEquals(Integer.class, eval("java.lang.Integer"));
+        assertEquals(Integer.MAX_VALUE, eval("java.lang.Integer.MAX_VALUE"));
+        assertEquals(7, eval("java.lang.Integer.valueOf(7)"));
+        assertEquals(Integer.valueOf(7).hashCode(), eval("java.lang.Integer.valueOf( 7 ).hashCode()"));
+        assertEquals("java.lang.String", eval("java.lang.String.valueOf(\"x\").getClass().getName()"));
+    }
+
+    @Test
+    public void membersOfClassesAreNotStatic() throws Exception {
+        try {
+            eval("java.lang.String.length()");
+            fail();
+        }
+        catch (NoSuchMethodException e) { /* expected */ }
+    }
+
+    @Test
+    public void storeReferences() throws Exception {
+        UUID uuid = store.add("hello");
+        assertEquals(5, eval("[" + uuid + "].length()"));
+        assertEquals("ell", eval("[" + uuid + "].substring(1, 4)"));
+
+        String name = store.persist(uuid);
+        assertEquals("$0", name);
+        assertEquals("hello", eval("$0"));
+        assertEquals("HELLO", eval("$0.toUpperCase()"));
+    }
+
+    @Test
+    public void resolvesAgainWhenTheClassChanges() throws Exception {
+        store.persist(store.add("abc"), "$x");
+        assertEquals(3, eval("$x.length()"));
+        store.persist(store.add(new StringBuilder("abcd")), "$x");
+        assertEquals(4, eval("$x.length()"));
+    }
+
+    @Test
+    public void closestOverloadWins() throws Exception {
+        assertEquals("1", eval("java.lang.String.valueOf(1)"));
+        assertEquals("true", eval("java.lang.String.valueOf(true)"));
+        assertEquals(2L, eval("java.lang.Math.max(1, 2L)"));
+        assertEquals(2, eval("java.lang.Math.max(1, 2)"));
+        assertEquals(2.0, eval("java.lang.Math.max(1, 2.0)"));
+        // valueOf(long), through widening of the int
+        assertEquals(5L, eval("java.lang.Long.valueOf(5)"));
+        // valueOf(String), not valueOf(int), takes null
+        try {
+            eval("java.lang.Integer.valueOf(null)");
+            fail();
+        }
+        catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+    }
+
+    @Test
+    public void match() {
+        assertEquals(1, Expression.match(new Class<?>[] { int.class }, new Object[] { 1 }));
+        assertEquals(1, Expression.match(new Class<?>[] { Integer.class }, new Object[] { 1 }));
+        assertEquals(0, Expression.match(new Class<?>[] { Object.class }, new Object[] { 1 }));
+        assertEquals(-1, Expression.match(new Class<?>[] { String.class }, new Object[] { 1 }));
+        // widening primitive conversions only
+        assertEquals(0, Expression.match(new Class<?>[] { long.class }, new Object[] { 1 }));
+        assertEquals(0, Expression.match(new Class<?>[] { double.class }, new Object[] { 1L }));
+        assertEquals(0, Expression.match(new Class<?>[] { int.class }, new Object[] { 'c' }));
+        assertEquals(-1, Expression.match(new Class<?>[] { byte.class }, new Object[] { 1 }));
+        assertEquals(-1, Expression.match(new Class<?>[] { char.class }, new Object[] { 1 }));
+        assertEquals(-1, Expression.match(new Class<?>[] { int.class }, new Object[] { true }));
+        // null goes to references only
+        assertEquals(0, Expression.match(new Class<?>[] { String.class }, new Object[] { null }));
+        assertEquals(-1, Expression.match(new Class<?>[] { int.class }, new Object[] { null }));
+        assertEquals(2, Expression.match(new Class<?>[] { int.class, String.class, Object.class },
+                new Object[] { 1, "s", "t" }));
+    }
+
+    @Test
+    public void errors() throws Exception {
+        for (String bad : new String[] { "", "1 +", "\"abc", "java.lang.Integer.valueOf(1", "$0.", "1x2" }) {
+            try {
+                Expression.compile(bad);
+                fail(bad);
+            }
+            catch (ValueFormatError e) { /* expected */ }
+        }
+        try {
+            Expression.compile("no.such.Clazz.foo()");
+            fail();
+        }
+        catch (ClassNotFoundException e) { /* expected */ }
+    }
+
+    @Test
+    public void failuresOfTheCalledMethod() throws Exception {
+        try {
+            eval("java.lang.Integer.parseInt(\"x\")");
+            fail();
+        }
+        catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+        try {
+            eval("java.lang.System.getProperty(\"no.such.property\").length()");
+            fail();
+        }
+        catch (NullPointerException e) { /* expected */ }
+    }
+
+    @Test
+    public void compiledOnce() throws Exception {
+        Expression e = Expression.compile("java.lang.Integer.valueOf(3)");
+        assertSame(e, Expression.compile("java.lang.Integer.valueOf(3)"));
+        assertEquals("java.lang.Integer.valueOf(3)", e.text);
+    }
+}
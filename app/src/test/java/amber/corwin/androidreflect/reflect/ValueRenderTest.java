@@ -0,0 +1,74 @@
+package amber.corwin.androidreflect.reflect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ValueRender} output, and where it stops.
+ */
+public class ValueRenderTest {
+
+    private static final String E = "<span class=\"array-element\">";
+    private static final String C = "</span>";
+
+    @Test
+    public void escapes() {
+        assertEquals("&#60;a href=&#34;x&#34;&#62; &#38; caf&#233;", ValueRender.escapeHTML("<a href=\"x\"> & caf\u00e9"));
+        assertEquals("null", new ValueRender().renderObject(null));
+        assertEquals("&#60;b&#62;", new ValueRender().renderObject(new StringBuilder("<b>")));
+    }
+
+    @Test
+    public void arrays() {
+        ValueRender r = new ValueRender();
+        assertEquals("[]", r.renderObject(new int[0]));
+        assertEquals("[" + E + "1" + C + ", " + E + "2" + C + "]", r.renderObject(new int[] { 1, 2 }));
+        assertEquals("[" + E + "true" + C + "]", r.renderObject(new boolean[] { true }));
+        assertEquals("[" + E + "1.5" + C + "]", r.renderObject(new float[] { 1.5f }));
+        assertEquals("[" + E + "&#60;" + C + ", " + E + "a" + C + "]", r.renderObject(new char[] { '<', 'a' }));
+        assertEquals("[" + E + "null" + C + ", " + E + "[" + E + "7" + C + "]" + C + "]",
+                r.renderObject(new Object[] { null, new long[] { 7 } }));
+    }
+
+    @Test
+    public void elementsPastTheCountAreCounted() {
+        ValueRender r = new ValueRender(2, 4, 1000);
+        assertEquals("[" + E + "1" + C + ", " + E + "2" + C + ", &#8230; 3 more]",
+                r.renderObject(new byte[] { 1, 2, 3, 4, 5 }));
+        assertEquals("[&#8230; 1 more]", new ValueRender(0, 4, 1000).renderObject(new String[] { "a" }));
+    }
+
+    @Test
+    public void nestingPastTheDepthIsCounted() {
+        ValueRender r = new ValueRender(10, 1, 1000);
+        assertEquals("[" + E + "[&#8230; 2 more]" + C + ", " + E + "x" + C + "]",
+                r.renderObject(new Object[] { new int[] { 1, 2 }, "x" }));
+    }
+
+    @Test
+    public void selfContainingArrayEnds() {
+        Object[] a = new Object[1];
+        a[0] = a;
+        String s = new ValueRender().renderObject(a);
+        assertTrue(s, s.endsWith("[&#8230; 1 more]" + C + "]" + C + "]" + C + "]" + C + "]"));
+    }
+
+    @Test
+    public void longTextIsCut() {
+        ValueRender r = new ValueRender(10, 4, 10);
+        assertEquals("abcdefghij&#8230; 6 more", r.renderObject("abcdefghijklmnop"));
+        assertEquals("abcdefghijklmnop", new ValueRender().renderObject("abcdefghijklmnop"));
+    }
+
+    @Test
+    public void longArrayStopsAtTheLength() {
+        int maxLength = 500;
+        String s = new ValueRender(Integer.MAX_VALUE, 4, maxLength).renderObject(new int[100000]);
+        int shown = s.split(E, -1).length - 1;
+        assertTrue(shown > 0);
+        assertTrue(s, s.endsWith(", &#8230; " + (100000 - shown) + " more]"));
+        // stops at the first element boundary past the length
+        assertTrue(s.length() < maxLength + (E + "0" + C + ", &#8230; 100000 more]").length());
+    }
+}
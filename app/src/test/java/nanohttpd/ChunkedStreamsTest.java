@@ -0,0 +1,139 @@
+package nanohttpd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ChunkedOutputStream} and {@link ChunkedInputStream}.
+ */
+public class ChunkedStreamsTest {
+
+    @Test
+    public void encodesSmallWritesAsOneChunk() throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ChunkedOutputStream out = new ChunkedOutputStream(raw);
+        out.write('h');
+        out.write(bytes("ello"));
+        out.write(bytes(", world"));
+        out.close();
+        assertEquals("c\r\nhello, world\r\n0\r\n\r\n", string(raw.toByteArray()));
+    }
+
+    @Test
+    public void flushEndsTheChunk() throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ChunkedOutputStream out = new ChunkedOutputStream(raw);
+        out.write(bytes("ab"));
+        out.flush();
+        out.flush();  // nothing pending: no empty chunk, which would end the body
+        out.write(bytes("cde"));
+        out.close();
+        out.close();
+        assertEquals("2\r\nab\r\n3\r\ncde\r\n0\r\n\r\n", string(raw.toByteArray()));
+    }
+
+    @Test
+    public void largeWriteIsAChunkOfItsOwn() throws IOException {
+        byte[] big = new byte[ChunkedOutputStream.TARGET_CHUNK_SIZE + 5];
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ChunkedOutputStream out = new ChunkedOutputStream(raw);
+        out.write(big);
+        out.close();
+        String header = Integer.toHexString(big.length) + "\r\n";
+        assertEquals(header.length() + big.length + 2 + 5, raw.size());
+        assertTrue(string(raw.toByteArray()).startsWith(header));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(7);
+        byte[] data = new byte[100 * 1000];
+        random.nextBytes(data);
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ChunkedOutputStream out = new ChunkedOutputStream(raw);
+        for (int off = 0; off < data.length; ) {
+            int n = Math.min(data.length - off, random.nextInt(40000));
+            out.write(data, off, n);
+            if (random.nextInt(4) == 0) out.flush();
+            off += n;
+        }
+        out.close();
+
+        byte[] encoded = raw.toByteArray();
+        assertArrayEquals(data, readAll(new ChunkedInputStream(pushback(new ByteArrayInputStream(encoded)))));
+        // Chunk headers straddling every read of the underlying stream
+        assertArrayEquals(data, readAll(new ChunkedInputStream(pushback(new Trickle(encoded, 3)))));
+    }
+
+    @Test
+    public void skipsExtensionsAndTrailersAndLeavesTheNextRequest() throws IOException {
+        String body = "4;name=value\r\nWiki\r\n5\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\nExpires: never\r\n\r\n";
+        String next = "GET /next HTTP/1.1\r\n\r\n";
+        for (int step : new int[] { 1, 2, 7, 4096 }) {
+            PushbackInputStream connection = pushback(new Trickle(bytes(body + next), step));
+            ChunkedInputStream in = new ChunkedInputStream(connection);
+            assertEquals("Wikipedia in\r\n\r\nchunks.", string(readAll(in)));
+            assertEquals(-1, in.read());
+            assertEquals(next, string(readAll(connection)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadChunkSize() throws IOException {
+        readAll(new ChunkedInputStream(pushback(new ByteArrayInputStream(bytes("zz\r\nabc\r\n0\r\n\r\n")))));
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedBody() throws IOException {
+        readAll(new ChunkedInputStream(pushback(new ByteArrayInputStream(bytes("a\r\nabc")))));
+    }
+
+    /**
+     * Returns at most <code>step</code> bytes per read.
+     */
+    static class Trickle extends FilterInputStream {
+        private final int step;
+
+        Trickle(byte[] data, int step) {
+            super(new ByteArrayInputStream(data));
+            this.step = step;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, step));
+        }
+    }
+
+    private static PushbackInputStream pushback(InputStream in) {
+        return new PushbackInputStream(in, 8192);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+}
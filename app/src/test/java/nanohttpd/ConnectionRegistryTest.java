@@ -0,0 +1,106 @@
+package nanohttpd;
+
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ConnectionRegistry}: the reaper and requests that start on the same connection.
+ */
+public class ConnectionRegistryTest {
+
+    /**
+     * A registry in which every idle connection is past its keep-alive timeout.
+     */
+    private static ConnectionRegistry expiring() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        registry.setKeepAliveTimeout(-1000);
+        return registry;
+    }
+
+    @Test
+    public void reaperFirstKeepsTheRequestOff() {
+        ConnectionRegistry registry = expiring();
+        Socket socket = new Socket();
+        ConnectionRegistry.Connection c = registry.register(socket);
+
+        assertEquals(1, registry.reapIdle());
+        assertTrue(socket.isClosed());
+        assertFalse(c.busy());
+        c.idle();
+        assertEquals(0, registry.getOpenCount());
+        assertEquals(0, registry.getBusyCount());
+        assertEquals(0, registry.getIdleCount());
+    }
+
+    @Test
+    public void requestFirstKeepsTheReaperOff() {
+        ConnectionRegistry registry = expiring();
+        Socket socket = new Socket();
+        ConnectionRegistry.Connection c = registry.register(socket);
+
+        assertTrue(c.busy());
+        assertTrue(c.busy());
+        assertEquals(1, registry.getBusyCount());
+        assertEquals(0, registry.reapIdle());
+        assertFalse(socket.isClosed());
+
+        c.idle();
+        assertEquals(0, registry.getBusyCount());
+        assertEquals(1, registry.getIdleCount());
+        assertEquals(1, registry.reapIdle());
+        assertTrue(socket.isClosed());
+    }
+
+    @Test
+    public void busyCountDropsOnceWhenClosedWhileBusy() {
+        ConnectionRegistry registry = expiring();
+        Socket socket = new Socket();
+        ConnectionRegistry.Connection c = registry.register(socket);
+
+        assertTrue(c.busy());
+        registry.closeAll();
+        assertEquals(0, registry.getBusyCount());
+        c.idle();  // the request finishing afterwards
+        assertEquals(0, registry.getBusyCount());
+        assertEquals(0, registry.getOpenCount());
+        assertFalse(c.busy());
+    }
+
+    @Test
+    public void reaperNeverClosesABusyConnection() throws InterruptedException {
+        final ConnectionRegistry registry = expiring();
+        final AtomicInteger closedWhileBusy = new AtomicInteger();
+        Thread[] workers = new Thread[8];
+        for (int i = 0; i < workers.length; i++) {
+            final Socket socket = new Socket();
+            final ConnectionRegistry.Connection c = registry.register(socket);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 100000 && c.busy(); n++) {
+                        if (socket.isClosed()) closedWhileBusy.incrementAndGet();
+                        c.idle();
+                    }
+                }
+            });
+        }
+        for (Thread t : workers) t.start();
+        boolean running = true;
+        while (running) {
+            registry.reapIdle();
+            running = false;
+            for (Thread t : workers) running |= t.isAlive();
+        }
+        for (Thread t : workers) t.join();
+        registry.reapIdle();
+
+        assertEquals(0, closedWhileBusy.get());
+        assertEquals(0, registry.getOpenCount());
+        assertEquals(0, registry.getBusyCount());
+        assertEquals(workers.length, registry.getReapedCount());
+    }
+}
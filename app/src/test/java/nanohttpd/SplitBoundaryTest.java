@@ -0,0 +1,98 @@
+package nanohttpd;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SplitBoundary.Splitter}, fed the same body cut into pieces at every possible place.
+ */
+public class SplitBoundaryTest {
+
+    private static final String BOUNDARY = "----boundary42";
+
+    private static final String BODY =
+            "--" + BOUNDARY + "\r\n" +
+            "Content-Disposition: form-data; name=\"a\"\r\n\r\n" +
+            "first value\r\n--" + BOUNDARY.substring(0, 6) + " looks like a delimiter\r\n" +
+            "--" + BOUNDARY + "\r\n" +
+            "Content-Disposition: form-data; name=\"b\"\r\n\r\n" +
+            "\r\n-\r\n--\r\n" +
+            "--" + BOUNDARY + "--\r\n";
+
+    /**
+     * Counts the temp files handed out.
+     */
+    static class CountingTempFileManager extends NanoHTTPD.DefaultTempFileManager {
+        int created;
+
+        @Override
+        public NanoHTTPD.TempFile createTempFile() throws Exception {
+            created++;
+            return super.createTempFile();
+        }
+    }
+
+    @Test
+    public void splitsInOneFeed() throws Exception {
+        check(BODY.getBytes(StandardCharsets.UTF_8), new int[0]);
+    }
+
+    @Test
+    public void splitsWhereverTheFeedsEnd() throws Exception {
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        for (int cut = 1; cut < body.length; cut++) {
+            check(body, new int[] { cut });
+        }
+    }
+
+    @Test
+    public void splitsOneByteAtATime() throws Exception {
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        int[] cuts = new int[body.length - 1];
+        for (int i = 0; i < cuts.length; i++) cuts[i] = i + 1;
+        check(body, cuts);
+    }
+
+    @Test
+    public void failureTable() {
+        assertArrayEquals(new int[] { 0, 0, 0, 1, 2 },
+                SplitBoundary.failureTable("abab".getBytes(StandardCharsets.US_ASCII)));
+        assertArrayEquals(new int[] { 0, 0, 1, 2, 3 },
+                SplitBoundary.failureTable("aaaa".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * @param cuts offsets at which one feed() ends and the next begins, in increasing order.
+     */
+    private static void check(byte[] body, int[] cuts) throws Exception {
+        CountingTempFileManager tfm = new CountingTempFileManager();
+        try {
+            SplitBoundary.Splitter splitter = new SplitBoundary.Splitter(
+                    ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII), tfm);
+            int from = 0;
+            for (int i = 0; i <= cuts.length; i++) {
+                int to = i < cuts.length ? cuts[i] : body.length;
+                byte[] piece = new byte[to - from];
+                System.arraycopy(body, from, piece, 0, piece.length);
+                splitter.feed(piece, piece.length);
+                from = to;
+            }
+            List<SplitBoundary.FilePart> parts = splitter.parts;
+            assertEquals(2, parts.size());
+            assertEquals("no temp file after the closing delimiter", 2, tfm.created);
+
+            Map<String, String> parms = new HashMap<>();
+            SplitBoundary.decodeMultipartData(parts, parms, new HashMap<String, String>());
+            assertEquals("first value\r\n--" + BOUNDARY.substring(0, 6) + " looks like a delimiter", parms.get("a"));
+            assertEquals("\r\n-\r\n--", parms.get("b"));
+        } finally {
+            tfm.clear();
+        }
+    }
+}